@@ -4,7 +4,8 @@ public enum ArgumentType {
 
     CONSTANT(1),
     REGISTER(2),
-    MEMORY_VALUE(3);
+    MEMORY_VALUE(3),
+    INDIRECT(0); // the byte or word at the address in a register
 
     public final int index;
 
@@ -16,6 +17,13 @@ public enum ArgumentType {
         return ArgumentType.values();
     }
 
+    /**
+     * The operand types that name a memory location.
+     */
+    public static ArgumentType[] addresses() {
+        return new ArgumentType[]{MEMORY_VALUE, INDIRECT};
+    }
+
     public static ArgumentType index(int index) {
         for (ArgumentType at : ArgumentType.values()) {
             if (at.index == index) {
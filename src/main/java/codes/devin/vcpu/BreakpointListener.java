@@ -0,0 +1,13 @@
+package codes.devin.vcpu;
+
+/**
+ * Receives notice that a CPU has reached a BRK instruction.
+ */
+public interface BreakpointListener {
+
+    /**
+     * Called on the thread running the CPU, with ip still pointing at the
+     * BRK instruction. Should return quickly.
+     */
+    void breakpoint(CPU cpu);
+}
@@ -0,0 +1,155 @@
+package codes.devin.vcpu;
+
+import codes.devin.vcpu.device.Device;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Maps page-aligned ranges of a {@link Memory} to {@link Device}s.
+ *
+ * Mapped pages are never allocated, so guest accesses to them take the
+ * same slow path as accesses to unallocated memory and ordinary memory
+ * accesses cost nothing extra.
+ */
+public final class Bus {
+
+    private static final class Mapping {
+
+        final int firstPage;
+        final int pages;
+        final Device device;
+
+        Mapping(int firstPage, int pages, Device device) {
+            this.firstPage = firstPage;
+            this.pages = pages;
+            this.device = device;
+        }
+
+        boolean contains(int page) {
+            return Integer.compareUnsigned(page - firstPage, pages) < 0;
+        }
+    }
+
+    private final Memory memory;
+
+    // Replaced rather than modified, so that running cores never see a partial update
+    private volatile Mapping[] mappings = new Mapping[0];
+
+    Bus(Memory memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Maps a device at the given page-aligned address, discarding whatever
+     * memory was there.
+     *
+     * Must not be called while a CPU is running on this memory.
+     */
+    public synchronized void map(int address, int length, Device device) {
+        if ((address & Memory.PAGE_MASK) != 0 || length <= 0) {
+            throw new IllegalArgumentException("mappings must be page-aligned and not empty");
+        }
+
+        int firstPage = address >>> Memory.PAGE_SHIFT;
+        int pages = (int) (((long) length + Memory.PAGE_MASK) >>> Memory.PAGE_SHIFT);
+        if (Integer.toUnsignedLong(firstPage) + pages > 1L << (32 - Memory.PAGE_SHIFT)) {
+            throw new IllegalArgumentException("mapping exceeds the address space");
+        }
+
+        for (Mapping mapping : mappings) {
+            if (Integer.compareUnsigned(firstPage, mapping.firstPage + mapping.pages) < 0
+                    && Integer.compareUnsigned(mapping.firstPage, firstPage + pages) < 0) {
+                throw new IllegalArgumentException("mapping overlaps an existing mapping");
+            }
+        }
+
+        memory.discard(firstPage, pages);
+        Mapping[] next = Arrays.copyOf(mappings, mappings.length + 1);
+        next[mappings.length] = new Mapping(firstPage, pages, device);
+        mappings = next;
+    }
+
+    /**
+     * Returns the device mapped at the given address, or null.
+     */
+    public Device device(int address) {
+        Mapping mapping = find(address >>> Memory.PAGE_SHIFT);
+        return mapping == null ? null : mapping.device;
+    }
+
+    /**
+     * Closes every mapped device.
+     */
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Mapping mapping : mappings) {
+            try {
+                mapping.device.close();
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                } else {
+                    failure.addSuppressed(ex);
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    boolean isMapped(int page) {
+        return find(page) != null;
+    }
+
+    // Unmapped addresses read as zeros and ignore writes, like unallocated memory
+
+    byte read(int address) {
+        Mapping mapping = find(address >>> Memory.PAGE_SHIFT);
+        return mapping == null ? 0 : mapping.device.read(offset(mapping, address));
+    }
+
+    void write(int address, byte value) {
+        Mapping mapping = find(address >>> Memory.PAGE_SHIFT);
+        if (mapping != null) {
+            mapping.device.write(offset(mapping, address), value);
+        }
+    }
+
+    /**
+     * Reads a word that does not straddle a page.
+     */
+    int readInt(int address) {
+        Mapping mapping = find(address >>> Memory.PAGE_SHIFT);
+        return mapping == null ? 0 : mapping.device.readInt(offset(mapping, address));
+    }
+
+    /**
+     * Writes a word that does not straddle a page.
+     */
+    void writeInt(int address, int value) {
+        Mapping mapping = find(address >>> Memory.PAGE_SHIFT);
+        if (mapping != null) {
+            mapping.device.writeInt(offset(mapping, address), value);
+        }
+    }
+
+    void copyFrom(Bus other) {
+        mappings = other.mappings;
+    }
+
+    private Mapping find(int page) {
+        for (Mapping mapping : mappings) {
+            if (mapping.contains(page)) {
+                return mapping;
+            }
+        }
+
+        return null;
+    }
+
+    private static int offset(Mapping mapping, int address) {
+        return address - (mapping.firstPage << Memory.PAGE_SHIFT);
+    }
+}
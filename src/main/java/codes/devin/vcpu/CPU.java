@@ -1,9 +1,39 @@
 package codes.devin.vcpu;
 
+import codes.devin.vcpu.dump.HexEncoder;
+import codes.devin.vcpu.interrupt.Interrupt;
+import codes.devin.vcpu.interrupt.InterruptController;
 import codes.devin.vcpu.interrupt.NonMaskableInterrupt;
+import codes.devin.vcpu.metrics.Counters;
+import codes.devin.vcpu.metrics.Profile;
+import codes.devin.vcpu.trace.Tracer;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
 
 public class CPU implements Runnable {
 
+    /**
+     * Default top of the stack.
+     */
+    public static final int STACK_TOP = 0x10000;
+
+    /**
+     * The most words a vector instruction may write, so that the bytes
+     * written fit in an int.
+     */
+    public static final int MAX_VECTOR = Integer.MAX_VALUE / 4;
+
+    // Preallocated so that stack faults do not allocate
+    private static final NonMaskableInterrupt STACK_OVERFLOW = new NonMaskableInterrupt("stack overflow", null, false, false);
+    private static final NonMaskableInterrupt STACK_UNDERFLOW = new NonMaskableInterrupt("stack underflow", null, false, false);
+    private static final NonMaskableInterrupt DIVIDE_BY_ZERO = new NonMaskableInterrupt("divide by zero", null, false, false);
+    private static final NonMaskableInterrupt NEGATIVE_LENGTH = new NonMaskableInterrupt("negative length", null, false, false);
+    private static final NonMaskableInterrupt VECTOR_TOO_LONG = new NonMaskableInterrupt("vector too long", null, false, false);
+    private static final NonMaskableInterrupt UNALIGNED = new NonMaskableInterrupt("unaligned atomic access", null, false, false);
+    private static final NonMaskableInterrupt UNHANDLED_INTERRUPT = new NonMaskableInterrupt("unhandled interrupt", null, false, false);
+    private static final NonMaskableInterrupt UNHANDLED_NMI = new NonMaskableInterrupt("unhandled non-maskable interrupt", null, false, false);
+    private static final NonMaskableInterrupt DOUBLE_FAULT = new NonMaskableInterrupt("double fault", null, false, false);
+
     /**
      * Instruction Pointer
      */
@@ -11,8 +41,17 @@ public class CPU implements Runnable {
 
     /**
      * Stack Pointer
+     *
+     * The stack grows down from {@link #stackTop}; sp points at the most
+     * recently pushed value.
      */
-    public int sp = 0xf000;
+    public int sp = STACK_TOP;
+
+    /**
+     * The stack occupies [stackLimit, stackTop).
+     */
+    public int stackTop = STACK_TOP;
+    public int stackLimit = 0xf000;
 
     public int eax;
     public int ebx;
@@ -21,10 +60,111 @@ public class CPU implements Runnable {
 
     public boolean halted = false;
 
-    public byte[] memory = new byte[0x10000];
+    /**
+     * Returned to the guest by HWID.
+     */
+    public final int coreId;
+
+    /**
+     * Guest memory. Cores of a {@link Machine} share the same memory; see
+     * there for the memory model.
+     */
+    public final Memory memory;
+
+    /**
+     * Devices mapped into {@link #memory}, shared with it.
+     */
+    public final Bus bus;
+
+    /**
+     * Delivers interrupts at instruction boundaries. Guest faults go to the
+     * handlers in its vector table; a fault without a handler is thrown as
+     * a {@link NonMaskableInterrupt} and stops the CPU.
+     */
+    public final InterruptController interrupts = new InterruptController();
+
+    /**
+     * Notified when a write to memory overwrites cached code.
+     */
+    public CodeListener codeListener;
+
+    /**
+     * Notified when the CPU halts, for example to dump its state.
+     */
+    public HaltListener haltListener;
+
+    /**
+     * Notified when the CPU reaches a BRK instruction, instead of raising a
+     * breakpoint interrupt; see {@link codes.devin.vcpu.debug.Debugger}.
+     */
+    public BreakpointListener breakpointListener;
+
+    /**
+     * Execution counters, if instrumented; see
+     * {@link codes.devin.vcpu.metrics.Metrics#attach(CPU)}.
+     */
+    public Counters counters;
+
+    /**
+     * Per-address execution counts, if profiling; see {@link Profile}.
+     */
+    public Profile profile;
+
+    /**
+     * Records retired instructions, if set; see {@link Tracer}.
+     */
+    public Tracer tracer;
+
+    /**
+     * The instruction sequences {@link #cycle()} executes as one. Must be
+     * set before the CPU runs.
+     */
+    public Fusion fusion = Fusion.DEFAULT;
+
+    private final InstructionCache instructions = new InstructionCache();
+
+    // Counts changes to the instruction cache, so that superinstructions
+    // know when to check that their instructions are still current
+    private int codeGeneration;
 
     public CPU(byte[] program) {
-        System.arraycopy(program, 0, memory, 0, program.length);
+        this(new Memory(), 0);
+        memory.load(0, program);
+    }
+
+    /**
+     * Creates a CPU running on the given memory, which may be shared with
+     * other cores.
+     */
+    public CPU(Memory memory, int coreId) {
+        this.memory = memory;
+        this.bus = memory.bus;
+        this.coreId = coreId;
+    }
+
+    /**
+     * Creates a copy of this CPU. The copy's memory shares every page with
+     * this CPU's memory until one of them writes to it, so forking costs
+     * time proportional to the number of pages rather than their contents.
+     * The copy decodes instructions afresh as it runs.
+     *
+     * Must not be called while the CPU is running.
+     */
+    public CPU fork() {
+        CPU child = new CPU(memory.fork(), coreId);
+        child.ip = ip;
+        child.sp = sp;
+        child.stackTop = stackTop;
+        child.stackLimit = stackLimit;
+        child.eax = eax;
+        child.ebx = ebx;
+        child.ecx = ecx;
+        child.edx = edx;
+        child.halted = halted;
+        child.haltListener = haltListener;
+        child.fusion = fusion;
+        child.interrupts.copyFrom(interrupts);
+        return child;
     }
 
     @Override
@@ -39,298 +179,769 @@ public class CPU implements Runnable {
         }
     }
 
+    /**
+     * Executes up to the given number of instructions, stopping early if the
+     * CPU halts.
+     *
+     * @return the number of instructions executed
+     */
+    public long runFor(long cycles) {
+        long used = 0;
+        while (used < cycles && !halted) {
+            used += advance(cycles - used);
+        }
+
+        return used;
+    }
+
+    /**
+     * Executes the next instruction, or the next few if they form a
+     * superinstruction; see {@link #fusion}.
+     */
     public void cycle() {
+        advance(Long.MAX_VALUE);
+    }
+
+    /**
+     * Executes a superinstruction of at most the given number of
+     * instructions if one starts at ip and nothing needs to see the
+     * instructions one by one, otherwise a single instruction.
+     *
+     * @return the number of instructions executed
+     */
+    private int advance(long limit) {
+        Superinstruction fused = counters == null && profile == null && tracer == null && !halted ? fused(ip) : null;
+        if (fused == null || fused.instructions.length > limit || !interrupts.isQuiet()) {
+            step();
+            return 1;
+        }
+
+        try {
+            return execute(fused);
+        } catch (Interrupt ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new NonMaskableInterrupt(ex);
+        }
+    }
+
+    /**
+     * Returns the superinstruction starting at the given address, if its
+     * first instruction has been decoded.
+     */
+    private Superinstruction fused(int address) {
+        Instruction insn = instructions.get(address);
+        if (insn == null) {
+            return null;
+        }
+
+        if (!insn.fusionChecked) {
+            insn.fusionChecked = true;
+            insn.fused = fusion.fuse(this, insn);
+        }
+
+        return insn.fused;
+    }
+
+    /**
+     * @return the number of instructions executed
+     */
+    private int execute(Superinstruction fused) {
+        Instruction[] insns = fused.instructions;
+        if (fused.generation != codeGeneration) {
+            for (Instruction insn : insns) {
+                if (instructions.get(insn.address) != insn) {
+                    // Overwritten; fuse again from the new code
+                    insns[0].fused = null;
+                    insns[0].fusionChecked = false;
+                    step();
+                    return 1;
+                }
+            }
+
+            fused.generation = codeGeneration;
+        }
+
+        switch (fused.shape) {
+            case Superinstruction.ARITHMETIC_BRANCH: {
+                Instruction arithmetic = insns[0];
+                Instruction branch = insns[1];
+                register(arithmetic.values[0], arithmetic(arithmetic, register(arithmetic.values[0]), operand(arithmetic, 1)));
+                ip = taken(branch.opcode, operand(branch, 1)) ? branch.values[0] : fused.end;
+                return 2;
+            }
+            case Superinstruction.MOVE_ARITHMETIC: {
+                Instruction move = insns[0];
+                Instruction arithmetic = insns[1];
+                register(move.values[0], operand(move, 1));
+                register(arithmetic.values[0], arithmetic(arithmetic, register(arithmetic.values[0]), operand(arithmetic, 1)));
+                ip = fused.end;
+                return 2;
+            }
+            default:
+                break;
+        }
+
+        int generation = codeGeneration;
+        for (int i = 0; i < insns.length; i++) {
+            Instruction insn = insns[i];
+            int next = insn.address + insn.length;
+            ip = next;
+            // Stop where the instructions run differently than when fused:
+            // after a fault, a halt, a jump, or a write to the code after them
+            if (!execute(insn) || halted || ip != next || codeGeneration != generation) {
+                return i + 1;
+            }
+        }
+
+        return insns.length;
+    }
+
+    private static int arithmetic(Instruction insn, int a, int b) {
+        switch (insn.opcode) {
+            case ADD:
+                return a + b;
+            case SUB:
+                return a - b;
+            default:
+                return a * b;
+        }
+    }
+
+    private static boolean taken(Opcode opcode, int test) {
+        switch (opcode) {
+            case JEZ:
+                return test == 0;
+            case JNZ:
+                return test != 0;
+            case JLZ:
+                return test < 0;
+            default:
+                return test > 0;
+        }
+    }
+
+    /**
+     * Executes a single instruction, like {@link #cycle()}, after entering
+     * the handler of any pending interrupt.
+     *
+     * @return the executed instruction, or null if the CPU is halted or the
+     * instruction faulted into a handler
+     */
+    public Instruction step() {
         if (halted) {
-            return;
+            return null;
+        }
+
+        if (interrupts.poll()) {
+            int vector = interrupts.next();
+            if (vector >= 0 && !interrupt(vector) && vector == InterruptController.NMI) {
+                throw UNHANDLED_NMI;
+            }
         }
 
         try {
-            if (ip >= memory.length) {
-                // Loop back to the beginning of memory
-                ip = 0;
+            Instruction insn;
+            try {
+                insn = decode(ip);
+            } catch (NonMaskableInterrupt ex) {
+                // An invalid encoding
+                fault(InterruptController.INVALID_OPCODE, ex);
+                return null;
+            }
+
+            ip += insn.length;
+            if (!execute(insn)) {
+                return null;
+            }
+
+            if (counters != null) {
+                counters.retired(insn, ip);
+            }
+
+            if (profile != null) {
+                profile.retired(insn, ip);
             }
 
-            Opcode opcode = Opcode.get(memory[ip++]);
-            byte flags = 0;
-            if (opcode.argumentCount > 0) {
-                flags = memory[ip++];
+            if (tracer != null) {
+                tracer.record(this, insn);
             }
 
-            Register reg;
-            switch (opcode) {
-                case NOP:
-                    break;
-                case MOV:
-                    if (argumentType(flags, 0) == ArgumentType.CONSTANT) {
-                        // Memory address
-                        // Note - only the least significant byte is set here
-                        int address = argument(flags, 0);
-                        int value = argument(flags, 1);
-                        memory[address] = (byte) value;
-                    } else if (argumentType(flags, 0) == ArgumentType.REGISTER) {
-                        reg = Register.index(memory[ip++]);
-                        int value = argument(flags, 1);
-                        register(reg, value);
-                    } else {
-                        throw new NonMaskableInterrupt("invalid argument type");
-                    }
-
-                    break;
-                case ADD:
-                    reg = Register.index(memory[ip++]);
-                    register(reg, register(reg) + argument(flags, 1));
-                    break;
-                case SUB:
-                    reg = Register.index(memory[ip++]);
-                    register(reg, register(reg) - argument(flags, 1));
-                    break;
-                case MUL:
-                    reg = Register.index(memory[ip++]);
-                    register(reg, register(reg) * argument(flags, 1));
-                    break;
-                case DIV:
-                    reg = Register.index(memory[ip++]);
-                    register(reg, register(reg) / argument(flags, 1));
-                    break;
-                case PUSH:
-                    push(Register.index(memory[ip++]));
-                    break;
-                case POP:
-                    pop(Register.index(memory[ip++]));
-                    break;
-                case APUSH:
-                    push(Register.EDX);
-                    push(Register.ECX);
-                    push(Register.EBX);
-                    push(Register.EAX);
-                    break;
-                case APOP:
-                    pop(Register.EAX);
-                    pop(Register.EBX);
-                    pop(Register.ECX);
-                    pop(Register.EDX);
-                    break;
-                case JMP:
-                    ip = argument(flags, 0);
-                    break;
-                case JEZ:
-                    int jezDest = argument(flags, 0);
-                    if (argument(flags, 1) == 0) {
-                        ip = jezDest;
-                    }
-                    break;
-                case JNZ:
-                    int jnzDest = argument(flags, 0);
-                    if (argument(flags, 1) != 0) {
-                        ip = jnzDest;
-                    }
-                    break;
-                case JLZ:
-                    int jlzDest = argument(flags, 0);
-                    if (argument(flags, 1) < 0) {
-                        ip = jlzDest;
-                    }
-                    break;
-                case JGZ:
-                    int jgzDest = argument(flags, 0);
-                    if (argument(flags, 1) > 0) {
-                        ip = jgzDest;
-                    }
-                    break;
-                case HWID:
-                    break;
-                case HLT:
-                    halt();
-                    break;
+            return insn;
+        } catch (Interrupt ex) {
+            if (counters != null) {
+                counters.interrupted();
             }
+
+            throw ex;
         } catch (Exception ex) {
+            if (counters != null) {
+                counters.interrupted();
+            }
+
             throw new NonMaskableInterrupt(ex);
         }
     }
 
-    private ArgumentType argumentType(byte flags, int index) {
-        // 0: >> 6
-        // 1: >> 4
-        // 2: >> 2
-        // 3: >> 0
-        int shr = 8 - ((index + 1) * 2);
-        
-        // 0: << 0
-        // 1: << 2
-        // 2: << 4
-        // 3: << 6
-        int shl = index * 2;
-        
-        int flag = (((byte) flags << shl) & 0xFF) >> (shr + shl);
-        return ArgumentType.index(flag);
+    /**
+     * Returns the predecoded instruction at the given address, decoding and
+     * caching it if necessary.
+     */
+    public Instruction decode(int address) {
+        Instruction insn = instructions.get(address);
+        if (insn == null) {
+            insn = Instruction.decode(memory, address);
+            instructions.put(insn);
+        }
+
+        return insn;
+    }
+
+    int codeGeneration() {
+        return codeGeneration;
+    }
+
+    /**
+     * Drops predecoded instructions overlapping the given range. Must be
+     * called after modifying code in {@link #memory} directly rather than
+     * through guest instructions.
+     */
+    public void invalidate(int address, int length) {
+        written(address, length);
+    }
+
+    /**
+     * Drops all predecoded instructions. Must be called after modifying
+     * {@link #memory} directly rather than through guest instructions.
+     */
+    public void flushInstructionCache() {
+        instructions.clear();
+        codeGeneration++;
+        if (codeListener != null) {
+            codeListener.codeFlushed();
+        }
     }
 
-    private int argument(byte flags, int index) {
-        ArgumentType type = argumentType(flags, index);
+    /**
+     * @return false if the instruction faulted into a handler
+     */
+    private boolean execute(Instruction insn) {
+        int[] values = insn.values;
+        switch (insn.opcode) {
+            case NOP:
+                break;
+            case MOV:
+                if (insn.kinds[0] == Instruction.CONSTANT) {
+                    // Memory address
+                    // Note - only the least significant byte is set here
+                    store(values[0], operand(insn, 1));
+                } else if (insn.kinds[0] == Instruction.INDIRECT) {
+                    store(register(values[0]), operand(insn, 1));
+                } else {
+                    register(values[0], operand(insn, 1));
+                }
+
+                break;
+            case ADD:
+                register(values[0], register(values[0]) + operand(insn, 1));
+                break;
+            case SUB:
+                register(values[0], register(values[0]) - operand(insn, 1));
+                break;
+            case MUL:
+                register(values[0], register(values[0]) * operand(insn, 1));
+                break;
+            case DIV:
+                int divisor = operand(insn, 1);
+                if (divisor == 0) {
+                    return fault(insn, InterruptController.DIVIDE_ERROR, DIVIDE_BY_ZERO);
+                }
 
-        switch (type) {
-            case CONSTANT:
-                int value = ((memory[ip] << 24) + (memory[ip + 1] << 16) + (memory[ip + 2] << 8) + (memory[ip + 3]));
-                ip += 4;
+                register(values[0], register(values[0]) / divisor);
+                break;
+            case INC:
+                register(values[0], register(values[0]) + 1);
+                break;
+            case DEC:
+                register(values[0], register(values[0]) - 1);
+                break;
+            case PUSH:
+                if (!canPush(1)) {
+                    return fault(insn, InterruptController.STACK_FAULT, STACK_OVERFLOW);
+                }
+
+                push(register(values[0]));
+                break;
+            case POP:
+                if (!canPop(1)) {
+                    return fault(insn, InterruptController.STACK_FAULT, STACK_UNDERFLOW);
+                }
+
+                register(values[0], pop());
+                break;
+            case APUSH:
+                if (!canPush(4)) {
+                    return fault(insn, InterruptController.STACK_FAULT, STACK_OVERFLOW);
+                }
+
+                push(edx);
+                push(ecx);
+                push(ebx);
+                push(eax);
+                break;
+            case APOP:
+                if (!canPop(4)) {
+                    return fault(insn, InterruptController.STACK_FAULT, STACK_UNDERFLOW);
+                }
+
+                eax = pop();
+                ebx = pop();
+                ecx = pop();
+                edx = pop();
+                break;
+            case CALL:
+                if (!canPush(1)) {
+                    return fault(insn, InterruptController.STACK_FAULT, STACK_OVERFLOW);
+                }
+
+                int callDest = operand(insn, 0);
+                push(ip);
+                ip = callDest;
+                break;
+            case RET:
+                if (!canPop(1)) {
+                    return fault(insn, InterruptController.STACK_FAULT, STACK_UNDERFLOW);
+                }
+
+                ip = pop();
+                break;
+            case IRET:
+                if (!canPop(2)) {
+                    return fault(insn, InterruptController.STACK_FAULT, STACK_UNDERFLOW);
+                }
+
+                ip = pop();
+                interrupts.restore(pop());
+                break;
+            case JMP:
+                ip = operand(insn, 0);
+                break;
+            case JEZ:
+                if (operand(insn, 1) == 0) {
+                    ip = operand(insn, 0);
+                }
+                break;
+            case JNZ:
+                if (operand(insn, 1) != 0) {
+                    ip = operand(insn, 0);
+                }
+                break;
+            case JLZ:
+                if (operand(insn, 1) < 0) {
+                    ip = operand(insn, 0);
+                }
+                break;
+            case JGZ:
+                if (operand(insn, 1) > 0) {
+                    ip = operand(insn, 0);
+                }
+                break;
+            case JEQ:
+                if (operand(insn, 1) == operand(insn, 2)) {
+                    ip = operand(insn, 0);
+                }
+                break;
+            case JNE:
+                if (operand(insn, 1) != operand(insn, 2)) {
+                    ip = operand(insn, 0);
+                }
+                break;
+            case JLT:
+                if (operand(insn, 1) < operand(insn, 2)) {
+                    ip = operand(insn, 0);
+                }
+                break;
+            case JGE:
+                if (operand(insn, 1) >= operand(insn, 2)) {
+                    ip = operand(insn, 0);
+                }
+                break;
+            case JGT:
+                if (operand(insn, 1) > operand(insn, 2)) {
+                    ip = operand(insn, 0);
+                }
+                break;
+            case JLE:
+                if (operand(insn, 1) <= operand(insn, 2)) {
+                    ip = operand(insn, 0);
+                }
+                break;
+            case LOOP:
+                int loopCount = register(values[1]) - 1;
+                register(values[1], loopCount);
+                if (loopCount != 0) {
+                    ip = operand(insn, 0);
+                }
+                break;
+            case CAS:
+                int casAddress = operand(insn, 0);
+                if ((casAddress & 3) != 0) {
+                    return fault(insn, InterruptController.ALIGNMENT_CHECK, UNALIGNED);
+                }
+
+                int expected = register(values[1]);
+                int witness = memory.compareAndExchangeInt(casAddress, expected, operand(insn, 2));
+                if (witness == expected) {
+                    written(casAddress, 4);
+                }
+
+                register(values[1], witness);
+                break;
+            case XADD:
+                int xaddAddress = operand(insn, 0);
+                if ((xaddAddress & 3) != 0) {
+                    return fault(insn, InterruptController.ALIGNMENT_CHECK, UNALIGNED);
+                }
+
+                register(values[1], memory.getAndAddInt(xaddAddress, register(values[1])));
+                written(xaddAddress, 4);
+                break;
+            case FENCE:
+                VarHandle.fullFence();
+                break;
+            case LOAD:
+                register(values[0], memory.readInt(address(insn, 1)));
+                break;
+            case STORE:
+                int storeAddress = address(insn, 0);
+                memory.writeInt(storeAddress, operand(insn, 1));
+                written(storeAddress, 4);
+                break;
+            case MEMCPY:
+                int copyLength = operand(insn, 2);
+                if (copyLength < 0) {
+                    return fault(insn, InterruptController.GENERAL_PROTECTION, NEGATIVE_LENGTH);
+                }
+
+                int copyDest = address(insn, 0);
+                memory.copy(copyDest, address(insn, 1), copyLength);
+                written(copyDest, copyLength);
+                break;
+            case MEMSET:
+                int fillLength = operand(insn, 2);
+                if (fillLength < 0) {
+                    return fault(insn, InterruptController.GENERAL_PROTECTION, NEGATIVE_LENGTH);
+                }
+
+                int fillDest = address(insn, 0);
+                memory.fill(fillDest, (byte) operand(insn, 1), fillLength);
+                written(fillDest, fillLength);
+                break;
+            case MEMCMP:
+                int compareLength = operand(insn, 3);
+                if (compareLength < 0) {
+                    return fault(insn, InterruptController.GENERAL_PROTECTION, NEGATIVE_LENGTH);
+                }
+
+                register(values[0], Integer.signum(memory.compare(address(insn, 1), address(insn, 2), compareLength)));
+                break;
+            case VADD:
+            case VSUB:
+            case VMUL:
+                int words = operand(insn, 3);
+                if (words < 0 || words > MAX_VECTOR) {
+                    return fault(insn, InterruptController.GENERAL_PROTECTION, words < 0 ? NEGATIVE_LENGTH : VECTOR_TOO_LONG);
+                }
+
+                int vectorDest = address(insn, 0);
+                if (insn.opcode == Opcode.VADD) {
+                    memory.addWords(vectorDest, address(insn, 1), address(insn, 2), words);
+                } else if (insn.opcode == Opcode.VSUB) {
+                    memory.subtractWords(vectorDest, address(insn, 1), address(insn, 2), words);
+                } else {
+                    memory.multiplyWords(vectorDest, address(insn, 1), address(insn, 2), words);
+                }
+
+                written(vectorDest, words * 4);
+                break;
+            case VSUM:
+                int sumLength = operand(insn, 2);
+                if (sumLength < 0) {
+                    return fault(insn, InterruptController.GENERAL_PROTECTION, NEGATIVE_LENGTH);
+                }
+
+                register(values[0], memory.sumWords(address(insn, 1), sumLength));
+                break;
+            case VDOT:
+                int dotLength = operand(insn, 3);
+                if (dotLength < 0) {
+                    return fault(insn, InterruptController.GENERAL_PROTECTION, NEGATIVE_LENGTH);
+                }
+
+                register(values[0], memory.dotWords(address(insn, 1), address(insn, 2), dotLength));
+                break;
+            case LIVT:
+                interrupts.loadTable(operand(insn, 0));
+                break;
+            case STI:
+                interrupts.setEnabled(true);
+                break;
+            case CLI:
+                interrupts.setEnabled(false);
+                break;
+            case TIMER:
+                interrupts.setTimer(operand(insn, 0));
+                break;
+            case HWID:
+                eax = coreId;
+                break;
+            case BRK:
+                if (breakpointListener != null) {
+                    ip = insn.address;
+                    breakpointListener.breakpoint(this);
+                    return false;
+                }
+
+                if (!interrupt(InterruptController.BREAKPOINT)) {
+                    return fault(insn, InterruptController.GENERAL_PROTECTION, UNHANDLED_INTERRUPT);
+                }
+
+                break;
+            case INT:
+                // Returns to the next instruction
+                if (!interrupt(operand(insn, 0))) {
+                    return fault(insn, InterruptController.GENERAL_PROTECTION, UNHANDLED_INTERRUPT);
+                }
+
+                break;
+            case HLT:
+                halt();
+                break;
+        }
+
+        return true;
+    }
+
+    /**
+     * Enters the handler for a vector: pushes the flags and the return
+     * address, and disables maskable interrupts.
+     *
+     * @return false if the vector has no handler
+     */
+    private boolean interrupt(int vector) {
+        int handler = interrupts.handler(memory, vector);
+        if (handler == 0) {
+            return false;
+        }
+
+        if (!canPush(2)) {
+            throw DOUBLE_FAULT;
+        }
+
+        push(interrupts.flags());
+        push(ip);
+        interrupts.setEnabled(false);
+        ip = handler;
+        if (counters != null) {
+            counters.interrupted();
+        }
+
+        return true;
+    }
+
+    /**
+     * Raises a fault for the given instruction, which is retried when its
+     * handler returns.
+     *
+     * @return false, for {@link #execute(Instruction)} to return
+     */
+    private boolean fault(Instruction insn, int vector, NonMaskableInterrupt unhandled) {
+        ip = insn.address;
+        fault(vector, unhandled);
+        return false;
+    }
+
+    private void fault(int vector, NonMaskableInterrupt unhandled) {
+        if (!interrupt(vector)) {
+            throw unhandled;
+        }
+    }
+
+    private boolean canPush(int values) {
+        return sp - values * 4 >= stackLimit && sp <= stackTop;
+    }
+
+    private boolean canPop(int values) {
+        return sp + values * 4 <= stackTop && sp >= stackLimit;
+    }
+
+    private int operand(Instruction insn, int index) {
+        int value = insn.values[index];
+        switch (insn.kinds[index]) {
+            case Instruction.CONSTANT:
                 return value;
-            case REGISTER:
-                return register(Register.index(memory[ip++]));
-            case MEMORY_VALUE:
-                int address = ((memory[ip] << 24) + (memory[ip + 1] << 16) + (memory[ip + 2] << 8) + (memory[ip + 3]));
-                ip += 4;
-                return memory[address];
+            case Instruction.REGISTER:
+                return register(value);
+            case Instruction.INDIRECT:
+                return memory.read(register(value));
             default:
-                throw new NonMaskableInterrupt("invalid argument type");
+                return memory.read(value);
         }
     }
 
-    private int register(byte flags, int index) {
-        byte flag = (byte) ((flags >> 8 - ((index + 1) * 2)) & 0xFF);
-        ArgumentType type = ArgumentType.index(flag);
+    /**
+     * Returns the address named by a {@link Instruction#MEMORY_VALUE} or
+     * {@link Instruction#INDIRECT} operand.
+     */
+    private int address(Instruction insn, int index) {
+        int value = insn.values[index];
+        return insn.kinds[index] == Instruction.INDIRECT ? register(value) : value;
+    }
 
-        if (type != ArgumentType.REGISTER) {
-            throw new NonMaskableInterrupt("invalid argument type");
-        }
+    /**
+     * Stores the least significant byte of the value at the given address.
+     */
+    public void store(int address, int value) {
+        memory.write(address, (byte) value);
+        written(address, 1);
+    }
 
-        return register(Register.index(memory[ip++]));
+    /**
+     * Drops cached code overwritten by a store.
+     */
+    private void written(int address, int length) {
+        if (instructions.invalidate(address, length)) {
+            codeGeneration++;
+            if (codeListener != null) {
+                codeListener.codeModified(address, length);
+            }
+        }
     }
 
-    private int register(Register reg) {
-        switch (reg) {
-            case EAX:
+    private int register(int slot) {
+        switch (slot) {
+            case Register.SLOT_EAX:
                 return eax;
-            case EBX:
+            case Register.SLOT_EBX:
                 return ebx;
-            case ECX:
+            case Register.SLOT_ECX:
                 return ecx;
-            case EDX:
+            case Register.SLOT_EDX:
                 return edx;
-            case IP:
-                return ip;
-            case SP:
+            case Register.SLOT_SP:
                 return sp;
+            case Register.SLOT_IP:
+                return ip;
             default:
                 throw new NonMaskableInterrupt("invalid register id");
         }
     }
 
-    private void register(Register reg, int value) {
-        switch (reg) {
-            case EAX:
+    private void register(int slot, int value) {
+        switch (slot) {
+            case Register.SLOT_EAX:
                 eax = value;
                 break;
-            case EBX:
+            case Register.SLOT_EBX:
                 ebx = value;
                 break;
-            case ECX:
+            case Register.SLOT_ECX:
                 ecx = value;
                 break;
-            case EDX:
+            case Register.SLOT_EDX:
                 edx = value;
                 break;
-            case IP:
-                ip = value;
-                break;
-            case SP:
+            case Register.SLOT_SP:
                 sp = value;
                 break;
+            case Register.SLOT_IP:
+                ip = value;
+                break;
             default:
                 throw new NonMaskableInterrupt("invalid register id");
         }
     }
 
-    private void push(Register reg) {
-        // sp[0] holds the stack size
-        // sp[4] is the first value
-
-        // Get the current stack size
-        int stackSize = ((memory[sp] << 24) + (memory[sp + 1] << 16) + (memory[sp + 2] << 8) + (memory[sp + 3]));
-
-        // Shift the stack
-        System.arraycopy(memory, sp + 4, memory, sp + 8, stackSize * 4);
-
-        // Set the new stack size
-        stackSize++;
-        memory[sp] = (byte) (stackSize >> 24);
-        memory[sp + 1] = (byte) (stackSize >> 16);
-        memory[sp + 2] = (byte) (stackSize >> 8);
-        memory[sp + 3] = (byte) (stackSize);
-
-        // Push the value on top of the stack
-        int val = register(reg);
-        memory[sp + 4] = (byte) (val >> 24);
-        memory[sp + 5] = (byte) (val >> 16);
-        memory[sp + 6] = (byte) (val >> 8);
-        memory[sp + 7] = (byte) (val);
+    /**
+     * Raises the fault that pushing the given number of values would, so
+     * that compiled code can check before pushing any of them.
+     */
+    public void checkPush(int values) {
+        if (!canPush(values)) {
+            throw STACK_OVERFLOW;
+        }
     }
 
-    private void pop(Register reg) {
-        // sp[0] holds the stack size
-        // sp[4] is the first value
-
-        // Get the current stack size
-        int stackSize = ((memory[sp] << 24) + (memory[sp + 1] << 16) + (memory[sp + 2] << 8) + (memory[sp + 3]));
+    /**
+     * Raises the fault that popping the given number of values would.
+     */
+    public void checkPop(int values) {
+        if (!canPop(values)) {
+            throw STACK_UNDERFLOW;
+        }
+    }
 
-        if (stackSize < 1) {
-            throw new NonMaskableInterrupt("empty stack");
+    public void push(int value) {
+        if (sp - 4 < stackLimit || sp > stackTop) {
+            throw STACK_OVERFLOW;
         }
 
-        // Get the top of the stack
-        int stackTop = ((memory[sp + 4] << 24) + (memory[sp + 5] << 16) + (memory[sp + 6] << 8) + (memory[sp + 7]));
+        sp -= 4;
+        memory.writeInt(sp, value);
+        written(sp, 4);
+        if (counters != null) {
+            counters.pushed(stackTop - sp);
+        }
+    }
 
-        // Resize the stack
-        System.arraycopy(memory, sp + 8, memory, sp + 4, (stackSize - 1) * 4);
+    public int pop() {
+        if (sp + 4 > stackTop || sp < stackLimit) {
+            throw STACK_UNDERFLOW;
+        }
 
-        // Set the new stack size
-        stackSize--;
-        memory[sp] = (byte) (stackSize >> 24);
-        memory[sp + 1] = (byte) (stackSize >> 16);
-        memory[sp + 2] = (byte) (stackSize >> 8);
-        memory[sp + 3] = (byte) (stackSize);
+        int value = memory.readInt(sp);
+        sp += 4;
+        if (counters != null) {
+            counters.popped();
+        }
 
-        // Set the register to the popped value
-        register(reg, stackTop);
+        return value;
     }
 
     public String dumpRegisters() {
-        StringBuilder sb = new StringBuilder();
-
-        sb.append("ip=").append(String.format("0x%08X", ip)).append(' ');
-        sb.append("sp=").append(String.format("0x%08X", sp)).append(' ');
-        sb.append("eax=").append(String.format("0x%08X", eax)).append(' ');
-        sb.append("ebx=").append(String.format("0x%08X", ebx)).append(' ');
-        sb.append("ecx=").append(String.format("0x%08X", ecx)).append(' ');
-        sb.append("edx=").append(String.format("0x%08X", edx)).append(' ');
-
-        return sb.toString();
+        byte[] dst = new byte[HexEncoder.REGISTERS_LENGTH];
+        HexEncoder.registers(dst, 0, ip, sp, eax, ebx, ecx, edx);
+        return new String(dst, StandardCharsets.US_ASCII);
     }
 
+    /**
+     * Dumps every allocated page; unallocated memory reads as zeros.
+     */
     public String dumpMemory() {
-        StringBuilder sb = new StringBuilder();
-
-        for (int i = 0; i < memory.length; i++) {
-            if (i % 16 == 0) {
-                if (i != 0) {
-                    sb.append("\n");
-                }
-
-                sb.append(String.format("%08X", i)).append("    ");
+        int[] pages = memory.allocatedPages();
+        int lines = Memory.PAGE_SIZE / HexEncoder.LINE_BYTES;
+        byte[] dst = new byte[pages.length * lines * HexEncoder.LINE_LENGTH];
+        byte[] page = new byte[Memory.PAGE_SIZE];
+        int pos = 0;
+        for (int index : pages) {
+            int start = index << Memory.PAGE_SHIFT;
+            memory.read(start, page, 0, Memory.PAGE_SIZE);
+            for (int off = 0; off < Memory.PAGE_SIZE; off += HexEncoder.LINE_BYTES) {
+                pos = HexEncoder.line(dst, pos, start + off, page, off);
             }
-
-            sb.append(String.format("%02X", memory[i])).append(" ");
         }
 
-        return sb.toString();
+        // No newline after the last line
+        return new String(dst, 0, Math.max(pos - 1, 0), StandardCharsets.US_ASCII);
     }
 
+    /**
+     * Halts the CPU and notifies the {@link #haltListener}, if any.
+     */
     public void halt() {
         halted = true;
-        System.out.println("CPU halted.");
-        System.out.println();
-        System.out.println("Register dump:");
-        System.out.println(dumpRegisters());
-        System.out.println();
-        System.out.println("Memory dump:");
-        System.out.println(dumpMemory());
+        if (haltListener != null) {
+            haltListener.halted(this);
+        }
     }
 }
@@ -0,0 +1,14 @@
+package codes.devin.vcpu;
+
+/**
+ * Receives notice of writes that overwrite previously decoded code.
+ */
+public interface CodeListener {
+
+    void codeModified(int address, int length);
+
+    /**
+     * All decoded code has been discarded.
+     */
+    void codeFlushed();
+}
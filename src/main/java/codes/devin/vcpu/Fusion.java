@@ -0,0 +1,337 @@
+package codes.devin.vcpu;
+
+import codes.devin.vcpu.interrupt.Interrupt;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of instruction sequences that {@link CPU#cycle()} executes as
+ * one superinstruction, skipping the per-instruction dispatch, interrupt
+ * polling and instruction cache lookups in between.
+ *
+ * A sequence is two or three opcodes. Only the last instruction of a
+ * sequence may jump (JMP, a conditional jump, CALL or RET); instructions
+ * that deliver interrupts or change how they are delivered are never
+ * fused. A sequence is fused where its first instruction is reached, so
+ * entering it in the middle through a jump simply executes the
+ * instructions from there one by one, or as another sequence.
+ *
+ * Tables are text: one sequence per line, opcode names separated by spaces
+ * and optionally followed by how often the sequence ran when profiled, with
+ * "#" starting a comment. Earlier lines take precedence when sequences
+ * overlap. {@link #profile(CPU, long, int)} builds a table from a run of a
+ * program, and {@link #DEFAULT} was built from the standard workloads.
+ */
+public final class Fusion {
+
+    public static final int MIN_LENGTH = 2;
+    public static final int MAX_LENGTH = 3;
+
+    /**
+     * Fuses nothing.
+     */
+    public static final Fusion NONE = new Fusion(new ArrayList<>(), new ArrayList<>());
+
+    public static final Fusion DEFAULT;
+
+    static {
+        InputStream in = Fusion.class.getResourceAsStream("/fusion.table");
+        if (in == null) {
+            throw new ExceptionInInitializerError("missing default fusion table");
+        }
+
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            DEFAULT = parse(reader);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private final List<Opcode[]> sequences;
+    private final List<Long> counts;
+
+    // The sequences starting with each opcode, by ordinal, longest first
+    private final Opcode[][][] byFirst = new Opcode[Opcode.values().length][][];
+
+    private Fusion(List<Opcode[]> sequences, List<Long> counts) {
+        this.sequences = sequences;
+        this.counts = counts;
+
+        List<List<Opcode[]>> buckets = new ArrayList<>();
+        for (int i = 0; i < byFirst.length; i++) {
+            buckets.add(new ArrayList<>());
+        }
+
+        for (Opcode[] sequence : sequences) {
+            buckets.get(sequence[0].ordinal()).add(sequence);
+        }
+
+        for (int i = 0; i < byFirst.length; i++) {
+            List<Opcode[]> bucket = buckets.get(i);
+            if (!bucket.isEmpty()) {
+                // Stable, so table order decides between sequences of equal length
+                bucket.sort(Comparator.comparingInt((Opcode[] sequence) -> -sequence.length));
+                byFirst[i] = bucket.toArray(new Opcode[0][]);
+            }
+        }
+    }
+
+    /**
+     * Reads a table.
+     *
+     * @throws IOException if the table cannot be read or is invalid
+     */
+    public static Fusion parse(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        List<Opcode[]> sequences = new ArrayList<>();
+        List<Long> counts = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens[0].isEmpty()) {
+                continue;
+            }
+
+            int length = tokens.length;
+            long count = 0;
+            if (Character.isDigit(tokens[length - 1].charAt(0))) {
+                try {
+                    count = Long.parseLong(tokens[--length]);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("line " + lineNumber + ": invalid count: " + tokens[length]);
+                }
+            }
+
+            if (length < MIN_LENGTH || length > MAX_LENGTH) {
+                throw new IOException("line " + lineNumber + ": sequences have " + MIN_LENGTH + " to " + MAX_LENGTH + " opcodes");
+            }
+
+            Opcode[] sequence = new Opcode[length];
+            for (int i = 0; i < length; i++) {
+                try {
+                    sequence[i] = Opcode.valueOf(tokens[i].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException("line " + lineNumber + ": unknown opcode: " + tokens[i]);
+                }
+
+                if (!(i == length - 1 ? canEnd(sequence[i]) : canLead(sequence[i]))) {
+                    throw new IOException("line " + lineNumber + ": " + sequence[i] + " cannot be fused there");
+                }
+            }
+
+            sequences.add(sequence);
+            counts.add(count);
+        }
+
+        return new Fusion(sequences, counts);
+    }
+
+    /**
+     * Runs a CPU for up to the given number of instructions, counting how
+     * often each fusible sequence runs.
+     *
+     * @return a table of the given number of most frequent sequences
+     */
+    public static Fusion profile(CPU cpu, long instructions, int size) {
+        Map<List<Opcode>, long[]> counts = new HashMap<>();
+        // The last two instructions of the current straight-line run
+        Instruction first = null;
+        Instruction second = null;
+        for (long n = 0; n < instructions && !cpu.halted; n++) {
+            Instruction insn = cpu.step();
+            if (insn == null) {
+                first = second = null;
+                continue;
+            }
+
+            boolean follows = second != null && second.address + second.length == insn.address;
+            if (follows && canEnd(insn.opcode)) {
+                counts.computeIfAbsent(Arrays.asList(second.opcode, insn.opcode), k -> new long[1])[0]++;
+                if (first != null) {
+                    counts.computeIfAbsent(Arrays.asList(first.opcode, second.opcode, insn.opcode), k -> new long[1])[0]++;
+                }
+            }
+
+            if (!canLead(insn.opcode) || insn.isBranch()) {
+                first = second = null;
+            } else {
+                first = follows ? second : null;
+                second = insn;
+            }
+        }
+
+        List<Map.Entry<List<Opcode>, long[]>> ranked = new ArrayList<>(counts.entrySet());
+        ranked.sort(Comparator.comparingLong((Map.Entry<List<Opcode>, long[]> e) -> -e.getValue()[0])
+                .thenComparing(e -> e.getKey().toString()));
+
+        List<Opcode[]> sequences = new ArrayList<>();
+        List<Long> table = new ArrayList<>();
+        for (Map.Entry<List<Opcode>, long[]> entry : ranked.subList(0, Math.min(size, ranked.size()))) {
+            sequences.add(entry.getKey().toArray(new Opcode[0]));
+            table.add(entry.getValue()[0]);
+        }
+
+        return new Fusion(sequences, table);
+    }
+
+    /**
+     * Writes this table in the form {@link #parse(Reader)} reads.
+     */
+    public void write(Writer out) throws IOException {
+        out.write("# Fused instruction sequences, most frequent first, and their profiled counts\n");
+        for (int i = 0; i < sequences.size(); i++) {
+            StringBuilder line = new StringBuilder();
+            for (Opcode opcode : sequences.get(i)) {
+                line.append(opcode).append(' ');
+            }
+
+            out.write(line.append(counts.get(i)).append('\n').toString());
+        }
+    }
+
+    /**
+     * The number of sequences in this table.
+     */
+    public int size() {
+        return sequences.size();
+    }
+
+    /**
+     * Finds the longest sequence starting with the given instruction,
+     * decoding the instructions after it from the CPU.
+     *
+     * @return the superinstruction, or null if no sequence matches
+     */
+    Superinstruction fuse(CPU cpu, Instruction insn) {
+        Opcode[][] candidates = byFirst[insn.opcode.ordinal()];
+        if (candidates == null) {
+            return null;
+        }
+
+        Instruction[] insns = new Instruction[MAX_LENGTH];
+        insns[0] = insn;
+        int decoded = 1;
+        for (Opcode[] sequence : candidates) {
+            int matched = 1;
+            while (matched < sequence.length) {
+                if (matched == decoded) {
+                    Instruction previous = insns[decoded - 1];
+                    if (previous.isBranch()) {
+                        break;
+                    }
+
+                    try {
+                        insns[decoded] = cpu.decode(previous.address + previous.length);
+                    } catch (Interrupt ex) {
+                        // Not code
+                        break;
+                    }
+
+                    decoded++;
+                }
+
+                if (insns[matched].opcode != sequence[matched]) {
+                    break;
+                }
+
+                matched++;
+            }
+
+            if (matched == sequence.length && straight(insns, matched)) {
+                return new Superinstruction(Arrays.copyOf(insns, matched), cpu.codeGeneration());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Whether control can only leave the given instructions from the last.
+     */
+    private static boolean straight(Instruction[] insns, int length) {
+        for (int i = 0; i < length - 1; i++) {
+            if (insns[i].isBranch()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Whether an opcode may be fused before another instruction.
+     */
+    private static boolean canLead(Opcode opcode) {
+        switch (opcode) {
+            case JMP:
+            case JEZ:
+            case JNZ:
+            case JLZ:
+            case JGZ:
+            case JEQ:
+            case JNE:
+            case JLT:
+            case JGE:
+            case JGT:
+            case JLE:
+            case LOOP:
+            case CALL:
+            case RET:
+            case IRET:
+            case INT:
+            case BRK:
+            case HLT:
+            case LIVT:
+            case STI:
+            case CLI:
+            case TIMER:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Whether an opcode may end a fused sequence.
+     */
+    private static boolean canEnd(Opcode opcode) {
+        switch (opcode) {
+            case JMP:
+            case JEZ:
+            case JNZ:
+            case JLZ:
+            case JGZ:
+            case JEQ:
+            case JNE:
+            case JLT:
+            case JGE:
+            case JGT:
+            case JLE:
+            case LOOP:
+            case CALL:
+            case RET:
+                return true;
+            default:
+                return canLead(opcode);
+        }
+    }
+}
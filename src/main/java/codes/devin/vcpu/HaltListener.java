@@ -0,0 +1,13 @@
+package codes.devin.vcpu;
+
+/**
+ * Receives notice that a CPU has halted.
+ */
+public interface HaltListener {
+
+    /**
+     * Called on the thread running the CPU, right after it halts. Should
+     * return quickly.
+     */
+    void halted(CPU cpu);
+}
@@ -0,0 +1,222 @@
+package codes.devin.vcpu;
+
+import codes.devin.vcpu.interrupt.NonMaskableInterrupt;
+
+/**
+ * A predecoded instruction.
+ *
+ * Operand kinds are {@link ArgumentType} indices. Operand values are the
+ * constant itself for {@link #CONSTANT}, the register slot (see
+ * {@link Register#SLOT_EAX}) for {@link #REGISTER} and {@link #INDIRECT},
+ * and the address for {@link #MEMORY_VALUE}.
+ */
+public final class Instruction {
+
+    public static final int CONSTANT = 1;
+    public static final int REGISTER = 2;
+    public static final int MEMORY_VALUE = 3;
+    public static final int INDIRECT = 0;
+
+    /**
+     * The longest possible encoding: opcode, flags and four 32-bit operands.
+     */
+    public static final int MAX_LENGTH = 2 + 4 * 4;
+
+    // Preallocated so that invalid encodings do not allocate
+    private static final NonMaskableInterrupt INVALID_REGISTER = new NonMaskableInterrupt("invalid register id", null, false, false);
+    private static final NonMaskableInterrupt INVALID_ARGUMENT = new NonMaskableInterrupt("invalid argument type", null, false, false);
+
+    public final Opcode opcode;
+    public final int address;
+    public final int length;
+    public final int[] kinds;
+    public final int[] values;
+
+    // The superinstruction starting here, found by the CPU on first use
+    Superinstruction fused;
+    boolean fusionChecked;
+
+    private Instruction(Opcode opcode, int address, int length, int[] kinds, int[] values) {
+        this.opcode = opcode;
+        this.address = address;
+        this.length = length;
+        this.kinds = kinds;
+        this.values = values;
+    }
+
+    public static Instruction decode(Memory memory, int address) {
+        int ip = address;
+        Opcode opcode = Opcode.get(memory.read(ip++));
+        int[] kinds = new int[opcode.argumentCount];
+        int[] values = new int[opcode.argumentCount];
+
+        if (opcode.argumentCount > 0) {
+            byte flags = memory.read(ip++);
+            for (int i = 0; i < opcode.argumentCount; i++) {
+                int kind = (flags >> (6 - i * 2)) & 0x03;
+                switch (kind) {
+                    case CONSTANT:
+                    case MEMORY_VALUE:
+                        values[i] = memory.readInt(ip);
+                        ip += 4;
+                        break;
+                    case REGISTER:
+                    case INDIRECT:
+                        Register reg = Register.index(memory.read(ip++));
+                        if (reg == null) {
+                            throw INVALID_REGISTER;
+                        }
+
+                        values[i] = reg.ordinal();
+                        break;
+                }
+
+                kinds[i] = kind;
+            }
+        }
+
+        switch (opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case INC:
+            case DEC:
+            case PUSH:
+            case POP:
+                if (kinds[0] != REGISTER) {
+                    throw INVALID_ARGUMENT;
+                }
+                break;
+            case MOV:
+                if (kinds[0] == MEMORY_VALUE) {
+                    throw INVALID_ARGUMENT;
+                }
+                break;
+            case LOOP:
+                if (kinds[1] != REGISTER) {
+                    throw INVALID_ARGUMENT;
+                }
+                break;
+            case CAS:
+            case XADD:
+                if (kinds[0] == MEMORY_VALUE || kinds[0] == INDIRECT || kinds[1] != REGISTER) {
+                    throw INVALID_ARGUMENT;
+                }
+                break;
+            case LOAD:
+                if (kinds[0] != REGISTER || !isAddress(kinds[1])) {
+                    throw INVALID_ARGUMENT;
+                }
+                break;
+            case STORE:
+            case MEMSET:
+                if (!isAddress(kinds[0])) {
+                    throw INVALID_ARGUMENT;
+                }
+                break;
+            case MEMCPY:
+                if (!isAddress(kinds[0]) || !isAddress(kinds[1])) {
+                    throw INVALID_ARGUMENT;
+                }
+                break;
+            case MEMCMP:
+            case VDOT:
+                if (kinds[0] != REGISTER || !isAddress(kinds[1]) || !isAddress(kinds[2])) {
+                    throw INVALID_ARGUMENT;
+                }
+                break;
+            case VADD:
+            case VSUB:
+            case VMUL:
+                if (!isAddress(kinds[0]) || !isAddress(kinds[1]) || !isAddress(kinds[2])) {
+                    throw INVALID_ARGUMENT;
+                }
+                break;
+            case VSUM:
+                if (kinds[0] != REGISTER || !isAddress(kinds[1])) {
+                    throw INVALID_ARGUMENT;
+                }
+                break;
+        }
+
+        return new Instruction(opcode, address, ip - address, kinds, values);
+    }
+
+    /**
+     * Whether this instruction may transfer control somewhere other than the
+     * next instruction.
+     */
+    public boolean isBranch() {
+        switch (opcode) {
+            case JMP:
+            case JEZ:
+            case JNZ:
+            case JLZ:
+            case JGZ:
+            case JEQ:
+            case JNE:
+            case JLT:
+            case JGE:
+            case JGT:
+            case JLE:
+            case LOOP:
+            case CALL:
+            case RET:
+            case IRET:
+            case INT:
+            case BRK:
+            case HLT:
+                return true;
+            case MOV:
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case INC:
+            case DEC:
+            case POP:
+            case LOAD:
+            case MEMCMP:
+            case VSUM:
+            case VDOT:
+                return writesIp();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether this is a jump that may fall through to the next instruction.
+     */
+    public boolean isConditionalBranch() {
+        switch (opcode) {
+            case JEZ:
+            case JNZ:
+            case JLZ:
+            case JGZ:
+            case JEQ:
+            case JNE:
+            case JLT:
+            case JGE:
+            case JGT:
+            case JLE:
+            case LOOP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isAddress(int kind) {
+        return kind == MEMORY_VALUE || kind == INDIRECT;
+    }
+
+    /**
+     * Whether the first operand is the IP register, i.e. whether a register
+     * write by this instruction is a jump.
+     */
+    public boolean writesIp() {
+        return kinds.length > 0 && kinds[0] == REGISTER && values[0] == Register.SLOT_IP;
+    }
+}
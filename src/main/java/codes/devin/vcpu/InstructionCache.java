@@ -0,0 +1,103 @@
+package codes.devin.vcpu;
+
+/**
+ * Caches predecoded instructions by address.
+ *
+ * Entries are held in pages matching the memory pages, found through a
+ * sparse two-level table, so memory that never holds executed code costs
+ * nothing. The most recently used page is cached.
+ */
+final class InstructionCache {
+
+    private static final int PAGE_SHIFT = Memory.PAGE_SHIFT;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int TABLE_SHIFT = 10;
+    private static final int TABLE_SIZE = 1 << TABLE_SHIFT;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    private final Instruction[][][] tables = new Instruction[1 << (32 - PAGE_SHIFT - TABLE_SHIFT)][][];
+    private int lastIndex = -1;
+    private Instruction[] lastPage;
+
+    Instruction get(int address) {
+        Instruction[] page = page(address >>> PAGE_SHIFT);
+        return page == null ? null : page[address & PAGE_MASK];
+    }
+
+    void put(Instruction insn) {
+        int index = insn.address >>> PAGE_SHIFT;
+        Instruction[] page = page(index);
+        if (page == null) {
+            Instruction[][] table = tables[index >>> TABLE_SHIFT];
+            if (table == null) {
+                table = tables[index >>> TABLE_SHIFT] = new Instruction[TABLE_SIZE][];
+            }
+
+            page = table[index & TABLE_MASK] = new Instruction[PAGE_SIZE];
+            lastIndex = index;
+            lastPage = page;
+        }
+
+        page[insn.address & PAGE_MASK] = insn;
+    }
+
+    /**
+     * Drops every cached instruction whose encoding overlaps the given range.
+     *
+     * @return true if anything was dropped
+     */
+    boolean invalidate(int address, int length) {
+        // Instructions starting up to MAX_LENGTH - 1 bytes before the range may reach into it
+        int before = Instruction.MAX_LENGTH - 1;
+        int first = address - before;
+        long count = (long) length + before;
+
+        boolean dropped = false;
+        long k = 0;
+        while (k < count) {
+            int start = first + (int) k;
+            int n = (int) Math.min(count - k, PAGE_SIZE - (start & PAGE_MASK));
+            Instruction[] page = page(start >>> PAGE_SHIFT);
+            if (page != null) {
+                for (int j = 0; j < n; j++) {
+                    int offset = (start & PAGE_MASK) + j;
+                    Instruction insn = page[offset];
+                    // Instructions before the range overlap it only if long enough to reach it
+                    if (insn != null && (k + j >= before || insn.length > before - (k + j))) {
+                        page[offset] = null;
+                        dropped = true;
+                    }
+                }
+            }
+
+            k += n;
+        }
+
+        return dropped;
+    }
+
+    void clear() {
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = null;
+        }
+
+        lastIndex = -1;
+        lastPage = null;
+    }
+
+    private Instruction[] page(int index) {
+        if (index == lastIndex) {
+            return lastPage;
+        }
+
+        Instruction[][] table = tables[index >>> TABLE_SHIFT];
+        Instruction[] page = table == null ? null : table[index & TABLE_MASK];
+        if (page != null) {
+            lastIndex = index;
+            lastPage = page;
+        }
+
+        return page;
+    }
+}
@@ -0,0 +1,87 @@
+package codes.devin.vcpu;
+
+/**
+ * A multi-core machine: several CPUs sharing one memory, each core running
+ * on its own host thread.
+ *
+ * Memory model: ordinary loads and stores (MOV, PUSH, POP, ...) are plain
+ * byte accesses with no ordering guarantees between cores. CAS and XADD
+ * operate on aligned 32-bit big-endian words and are sequentially
+ * consistent; FENCE is a full fence. Guests must publish data to other cores
+ * through one of those. Each core caches decoded instructions privately, so
+ * code must not be modified while another core may be executing it.
+ *
+ * Every core starts at ip 0 with its own stack, laid out downwards from
+ * {@link CPU#STACK_TOP}; HWID tells cores apart.
+ */
+public class Machine {
+
+    public static final int DEFAULT_STACK_SIZE = 0x400;
+
+    public final Memory memory = new Memory();
+    public final CPU[] cores;
+
+    private Thread[] threads;
+
+    public Machine(byte[] program, int cores) {
+        this(program, cores, DEFAULT_STACK_SIZE);
+    }
+
+    /**
+     * Creates a machine whose cores each get stackSize bytes of stack.
+     */
+    public Machine(byte[] program, int cores, int stackSize) {
+        if (cores < 1 || program.length > CPU.STACK_TOP - cores * stackSize) {
+            throw new IllegalArgumentException("program and stacks overlap");
+        }
+
+        memory.load(0, program);
+
+        this.cores = new CPU[cores];
+        for (int i = 0; i < cores; i++) {
+            CPU cpu = new CPU(memory, i);
+            cpu.stackTop = CPU.STACK_TOP - i * stackSize;
+            cpu.stackLimit = cpu.stackTop - stackSize;
+            cpu.sp = cpu.stackTop;
+            this.cores[i] = cpu;
+        }
+    }
+
+    /**
+     * Starts every core on its own thread.
+     */
+    public synchronized void start() {
+        if (threads != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        threads = new Thread[cores.length];
+        for (int i = 0; i < cores.length; i++) {
+            threads[i] = new Thread(cores[i], "vcpu-core-" + i);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Waits for every core to halt.
+     */
+    public void join() throws InterruptedException {
+        Thread[] threads;
+        synchronized (this) {
+            threads = this.threads;
+        }
+
+        if (threads == null) {
+            throw new IllegalStateException("not started");
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    public void run() throws InterruptedException {
+        start();
+        join();
+    }
+}
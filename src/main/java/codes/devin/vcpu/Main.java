@@ -1,62 +1,298 @@
 package codes.devin.vcpu;
 
 import codes.devin.vcpu.asm.Assembler;
+import codes.devin.vcpu.daemon.Daemon;
+import codes.devin.vcpu.debug.DebugConsole;
+import codes.devin.vcpu.debug.Debugger;
+import codes.devin.vcpu.device.Console;
+import codes.devin.vcpu.dump.Dumper;
+import codes.devin.vcpu.link.Build;
+import codes.devin.vcpu.metrics.Profile;
+import codes.devin.vcpu.trace.TraceReader;
+import codes.devin.vcpu.trace.Tracer;
+import codes.devin.vcpu.workload.WorkloadRunner;
 import com.google.common.io.ByteStreams;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Main {
 
+    private static final int TRACE_CAPACITY = 1 << 20;
+    private static final String BUILD_CACHE = ".vcpu-cache";
+    private static final long FUSION_PROFILE_LIMIT = 100_000_000L;
+    private static final int FUSION_TABLE_SIZE = 24;
+
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            Daemon.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        int status = execute(args, Paths.get("").toAbsolutePath(), System.in, System.out, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs a command, resolving file names against the given directory.
+     *
+     * @return the exit status
+     */
+    public static int execute(String[] args, Path dir, InputStream in, PrintStream out, PrintStream err) throws Exception {
+        if (args.length > 0 && args[0].equals("--workloads")) {
+            return workloads(Arrays.copyOfRange(args, 1, args.length), dir, out, err);
+        }
+
+        if (args.length > 2 && args[0].equals("--fusion-profile")) {
+            profileFusion(dir.resolve(args[1]), dir.resolve(args[2]), out);
+            return 0;
+        }
+
+        if (args.length > 2 && args[0].equals("--profile")) {
+            profile(dir.resolve(args[1]), dir.resolve(args[2]), out, err);
+            return 0;
+        }
+
+        boolean optimize = false;
+        Path layout = null;
+        if (args.length > 0 && args[0].equals("--assemble")) {
+            // Strip the options, leaving the command and file names
+            List<String> rest = new ArrayList<>(Arrays.asList(args));
+            while (rest.size() > 1 && rest.get(1).startsWith("-")) {
+                String option = rest.remove(1);
+                if (option.equals("-O")) {
+                    optimize = true;
+                } else if (option.equals("--layout") && rest.size() > 1) {
+                    layout = dir.resolve(rest.remove(1));
+                } else {
+                    err.println("Unknown assemble option: " + option);
+                    return 1;
+                }
+            }
+
+            args = rest.toArray(new String[0]);
+        }
+
         if (args.length < 2
-                || !(args[0].equals("--assemble") || args[0].equals("--run"))
-                || (args[0].equals("--assemble") && args.length < 3)) {
-            System.err.println("Valid usage arguments:");
-            System.err.println("\t--assemble in.asm out.bin\t\tAssembles the specified assembly file to the specified output file.");
-            System.err.println("\t--run program.bin\t\t\tRuns the specified program.");
-            System.exit(1);
-        }
-        
-        File inFile = new File(args[1]);
+                || !(args[0].equals("--assemble") || args[0].equals("--run") || args[0].equals("--trace") || args[0].equals("--build")
+                        || args[0].equals("--debug"))
+                || ((args[0].equals("--assemble") || args[0].equals("--build")) && args.length < 3)) {
+            err.println("Valid usage arguments:");
+            err.println("\t--assemble [-O] [--layout profile.txt] in.asm out.bin\tAssembles the specified assembly file to the specified output file, optionally optimizing it and laying it out by a profile.");
+            err.println("\t--run program.bin [trace.bin]\t\tRuns the specified program, optionally tracing it to the specified file.");
+            err.println("\t--trace trace.bin\t\t\tPrints the specified execution trace.");
+            err.println("\t--build out.bin main.asm [lib.asm ...]\tAssembles the specified modules in parallel and links them, main first.");
+            err.println("\t--debug program.asm\t\t\tAssembles the specified program and runs it under an interactive debugger.");
+            err.println("\t--workloads [--jit] [--warmup n] [--repeats n] [--fusion table|none]\tRuns the standard workloads and prints their speed as JSON.");
+            err.println("\t--fusion-profile program.bin table.txt\tRuns the specified program and writes its most frequent fusible instruction sequences.");
+            err.println("\t--profile program.asm profile.txt\tAssembles and runs the specified program and writes how often each instruction and branch ran.");
+            err.println("\t--daemon [socket]\t\t\tServes these commands to clients over a Unix domain socket.");
+            return 1;
+        }
+
+        if (args[0].equals("--build")) {
+            build(dir, args[1], Arrays.copyOfRange(args, 2, args.length), out);
+            return 0;
+        }
+
+        File inFile = dir.resolve(args[1]).toFile();
         if (!inFile.exists()) {
-            System.err.println("Specified input file does not exist.");
-            System.exit(2);
+            err.println("Specified input file does not exist.");
+            return 2;
         }
-        
+
         if (args[0].equals("--assemble")) {
-            assemble(inFile, args[2]);
+            assemble(inFile, dir.resolve(args[2]).toFile(), optimize, layout);
         } else if (args[0].equals("--run")) {
-            run(inFile);
+            run(inFile, args.length > 2 ? dir.resolve(args[2]) : null, out, err);
+        } else if (args[0].equals("--debug")) {
+            debug(inFile, in, out);
+        } else if (args[0].equals("--trace")) {
+            try (TraceReader reader = new TraceReader(inFile.toPath())) {
+                while (reader.next()) {
+                    out.println(reader);
+                }
+            }
         }
+
+        return 0;
     }
-    
-    private static void assemble(File inFile, String outFileName) throws Exception {
-        File outFile = new File(outFileName);
-        List<String> code = new ArrayList<>();
+
+    private static void assemble(File inFile, File outFile, boolean optimize, Path layout) throws Exception {
+        byte[] program;
         try (BufferedReader br = new BufferedReader(new FileReader(inFile))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                code.add(line + "\n");
+            Assembler assembler = new Assembler(br);
+            if (layout != null) {
+                try (BufferedReader profile = new BufferedReader(new FileReader(layout.toFile()))) {
+                    program = assembler.assembleWithProfile(profile, optimize);
+                }
+            } else {
+                program = optimize ? assembler.assembleOptimized() : assembler.assemble();
             }
         }
-        
-        Assembler asm = new Assembler(code.toArray(new String[0]));
+
         try (FileOutputStream fos = new FileOutputStream(outFile)) {
-            fos.write(asm.assemble());
+            fos.write(program);
         }
     }
-    
-    private static void run(File inFile) throws Exception {
+
+    private static void build(Path dir, String outFileName, String[] sourceFileNames, PrintStream out) throws Exception {
+        List<Path> sources = new ArrayList<>();
+        for (String name : sourceFileNames) {
+            sources.add(dir.resolve(name));
+        }
+
+        Build build = new Build(dir.resolve(BUILD_CACHE));
+        byte[] program = build.build(sources);
+        try (FileOutputStream fos = new FileOutputStream(dir.resolve(outFileName).toFile())) {
+            fos.write(program);
+        }
+
+        out.println("Assembled " + build.assembled() + " modules, reused " + build.reused() + " cached.");
+    }
+
+    private static void run(File inFile, Path traceFile, PrintStream out, PrintStream err) throws Exception {
         byte[] program;
         try (FileInputStream fis = new FileInputStream(inFile)) {
             program = ByteStreams.toByteArray(fis);
         }
-        
-        new CPU(program).run();
+
+        CPU cpu = new CPU(program);
+        try (Dumper dumper = new Dumper(Dumper.Format.TEXT, Dumper.Regions.ALL, Channels.newChannel(out))) {
+            // The console is closed, so all guest output is written, before the dump
+            try (Console console = new Console(Channels.newChannel(out))) {
+                cpu.bus.map(Console.DEFAULT_ADDRESS, Console.SIZE, console);
+                if (traceFile == null) {
+                    run(cpu, err);
+                } else {
+                    try (Tracer tracer = new Tracer(TRACE_CAPACITY)) {
+                        tracer.attach(cpu);
+                        tracer.stream(traceFile);
+                        run(cpu, err);
+                    }
+                }
+            } finally {
+                dumper.dump(cpu);
+            }
+        }
+    }
+
+    private static int workloads(String[] args, Path dir, PrintStream out, PrintStream err) throws Exception {
+        boolean jit = false;
+        Fusion fusion = Fusion.DEFAULT;
+        int warmup = WorkloadRunner.DEFAULT_WARMUP;
+        int repeats = WorkloadRunner.DEFAULT_REPEATS;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--jit")) {
+                jit = true;
+            } else if (args[i].equals("--warmup") && i + 1 < args.length) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--repeats") && i + 1 < args.length) {
+                repeats = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--fusion") && i + 1 < args.length) {
+                String table = args[++i];
+                if (table.equals("none")) {
+                    fusion = Fusion.NONE;
+                } else {
+                    try (BufferedReader br = new BufferedReader(new FileReader(dir.resolve(table).toFile()))) {
+                        fusion = Fusion.parse(br);
+                    }
+                }
+            } else {
+                err.println("Unknown workload option: " + args[i]);
+                return 1;
+            }
+        }
+
+        return new WorkloadRunner(jit, warmup, repeats, fusion).run(out) ? 0 : 4;
+    }
+
+    private static void profileFusion(Path inFile, Path tableFile, PrintStream out) throws Exception {
+        byte[] program;
+        try (FileInputStream fis = new FileInputStream(inFile.toFile())) {
+            program = ByteStreams.toByteArray(fis);
+        }
+
+        Fusion fusion = Fusion.profile(new CPU(program), FUSION_PROFILE_LIMIT, FUSION_TABLE_SIZE);
+        try (FileWriter writer = new FileWriter(tableFile.toFile())) {
+            fusion.write(writer);
+        }
+
+        out.println("Wrote " + fusion.size() + " sequences.");
+    }
+
+    private static void profile(Path inFile, Path profileFile, PrintStream out, PrintStream err) throws Exception {
+        Assembler assembler;
+        byte[] program;
+        try (BufferedReader br = new BufferedReader(new FileReader(inFile.toFile()))) {
+            assembler = new Assembler(br);
+            program = assembler.assemble();
+        }
+
+        try (Console console = new Console(Channels.newChannel(out))) {
+            CPU cpu = new CPU(program);
+            cpu.bus.map(Console.DEFAULT_ADDRESS, Console.SIZE, console);
+            cpu.profile = new Profile();
+            run(cpu, err);
+            console.flush();
+
+            try (FileWriter writer = new FileWriter(profileFile.toFile())) {
+                cpu.profile.write(writer, assembler.labels());
+            }
+        }
+    }
+
+    private static void debug(File inFile, InputStream in, PrintStream out) throws Exception {
+        Assembler assembler;
+        byte[] program;
+        try (BufferedReader br = new BufferedReader(new FileReader(inFile))) {
+            assembler = new Assembler(br);
+            program = assembler.assemble();
+        }
+
+        try (Console console = new Console(Channels.newChannel(out))) {
+            CPU cpu = new CPU(program);
+            cpu.bus.map(Console.DEFAULT_ADDRESS, Console.SIZE, console);
+            cpu.haltListener = halted -> {
+                try {
+                    console.flush();
+                } catch (IOException ex) {
+                    // Reported when the console is closed
+                }
+            };
+
+            try (Debugger debugger = new Debugger(cpu)) {
+                new DebugConsole(debugger, cpu, assembler.labels(), new BufferedReader(new InputStreamReader(in)), out).run();
+            }
+        }
+    }
+
+    /**
+     * Like {@link CPU#run()}, but reports faults to the given stream.
+     */
+    private static void run(CPU cpu, PrintStream err) {
+        try {
+            while (!cpu.halted) {
+                cpu.cycle();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace(err);
+            cpu.halt();
+        }
     }
 }
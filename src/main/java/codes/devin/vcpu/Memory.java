@@ -0,0 +1,728 @@
+package codes.devin.vcpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Sparse, paged guest memory spanning the full 32-bit address space, with
+ * copy-on-write sharing between forks.
+ *
+ * Pages are allocated on first write and found through a two-level page
+ * table; unallocated pages read as zeros. Each table has a read view
+ * ({@link Table#pages}) and a write view ({@link Table#writable}). Any write
+ * to a page missing from the write view takes the slow path in
+ * {@link #writeFault}, which allocates or copies the page if it is not
+ * exclusively {@link Table#owned} yet and marks it dirty. Forking therefore
+ * costs one copy of each allocated table, and each side copies a page only
+ * when it first writes to it. Likewise, {@link #clearDirty()} only empties
+ * the write views, so dirty tracking costs one fault per page per interval.
+ *
+ * The most recently read and written pages are cached, so sequential and
+ * looping accesses skip the table walk.
+ *
+ * Watched pages are never added to the write view either, so every write
+ * to them faults and notifies the {@link #watchListener}; writes to other
+ * pages cost nothing extra.
+ *
+ * Pages mapped to devices by the {@link #bus} are never allocated. Accesses
+ * to them find no page and are passed to the bus.
+ *
+ * Addresses are unsigned. Words are 32-bit big-endian.
+ */
+public final class Memory {
+
+    public static final int PAGE_SHIFT = 12;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    public static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int TABLE_SHIFT = 10;
+    private static final int TABLE_SIZE = 1 << TABLE_SHIFT;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+    private static final int TABLE_COUNT = 1 << (32 - PAGE_SHIFT - TABLE_SHIFT);
+
+    private static final VarHandle WORDS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    // Read in place of unallocated pages
+    private static final byte[] ZEROS = new byte[PAGE_SIZE];
+
+    private static final class Page {
+
+        final int index;
+        final byte[] data;
+
+        Page(int index, byte[] data) {
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    private static final class Table {
+
+        final Page[] pages;
+        final long[] dirty = new long[TABLE_SIZE / 64];
+        final long[] watched = new long[TABLE_SIZE / 64];
+
+        // Allocated on the first write fault, so that forked tables stay small until written
+        Page[] owned;
+        Page[] writable;
+
+        Table(Page[] pages) {
+            this.pages = pages;
+        }
+    }
+
+    public final Bus bus = new Bus(this);
+
+    /**
+     * Notified of writes to pages passed to {@link #watch(int)}.
+     */
+    public volatile WatchListener watchListener;
+
+    private final Table[] tables = new Table[TABLE_COUNT];
+
+    // Single references, so that cores sharing this memory never see a torn entry
+    private Page lastRead;
+    private Page lastWrite;
+
+    public byte read(int address) {
+        Page page = readPage(address >>> PAGE_SHIFT);
+        return page == null ? bus.read(address) : page.data[address & PAGE_MASK];
+    }
+
+    public void write(int address, byte value) {
+        Page page = writePage(address >>> PAGE_SHIFT);
+        if (page == null) {
+            bus.write(address, value);
+            return;
+        }
+
+        page.data[address & PAGE_MASK] = value;
+    }
+
+    public int readInt(int address) {
+        int offset = address & PAGE_MASK;
+        if (offset > PAGE_SIZE - 4) {
+            // Straddles two pages
+            return ((read(address) & 0xFF) << 24) | ((read(address + 1) & 0xFF) << 16)
+                    | ((read(address + 2) & 0xFF) << 8) | (read(address + 3) & 0xFF);
+        }
+
+        Page page = readPage(address >>> PAGE_SHIFT);
+        return page == null ? bus.readInt(address) : (int) WORDS.get(page.data, offset);
+    }
+
+    public void writeInt(int address, int value) {
+        int offset = address & PAGE_MASK;
+        if (offset > PAGE_SIZE - 4) {
+            write(address, (byte) (value >> 24));
+            write(address + 1, (byte) (value >> 16));
+            write(address + 2, (byte) (value >> 8));
+            write(address + 3, (byte) value);
+            return;
+        }
+
+        Page page = writePage(address >>> PAGE_SHIFT);
+        if (page == null) {
+            bus.writeInt(address, value);
+            return;
+        }
+
+        WORDS.set(page.data, offset, value);
+    }
+
+    /**
+     * Atomically replaces the aligned word at the given address if it holds
+     * the expected value. Not atomic for devices.
+     *
+     * @return the previous value
+     */
+    public int compareAndExchangeInt(int address, int expected, int value) {
+        Page page = writePage(address >>> PAGE_SHIFT);
+        if (page == null) {
+            int witness = bus.readInt(address);
+            if (witness == expected) {
+                bus.writeInt(address, value);
+            }
+
+            return witness;
+        }
+
+        return (int) WORDS.compareAndExchange(page.data, address & PAGE_MASK, expected, value);
+    }
+
+    /**
+     * Atomically adds to the aligned word at the given address. Not atomic
+     * for devices.
+     *
+     * @return the previous value
+     */
+    public int getAndAddInt(int address, int delta) {
+        Page page = writePage(address >>> PAGE_SHIFT);
+        if (page == null) {
+            int previous = bus.readInt(address);
+            bus.writeInt(address, previous + delta);
+            return previous;
+        }
+
+        return (int) WORDS.getAndAdd(page.data, address & PAGE_MASK, delta);
+    }
+
+    /**
+     * Copies memory into the given array.
+     */
+    public void read(int address, byte[] dst, int offset, int length) {
+        while (length > 0) {
+            int pageOffset = address & PAGE_MASK;
+            int n = Math.min(length, PAGE_SIZE - pageOffset);
+            Page page = readPage(address >>> PAGE_SHIFT);
+            if (page == null) {
+                for (int i = 0; i < n; i++) {
+                    dst[offset + i] = bus.read(address + i);
+                }
+            } else {
+                System.arraycopy(page.data, pageOffset, dst, offset, n);
+            }
+
+            address += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Copies the given array into memory.
+     */
+    public void write(int address, byte[] src, int offset, int length) {
+        while (length > 0) {
+            int pageOffset = address & PAGE_MASK;
+            int n = Math.min(length, PAGE_SIZE - pageOffset);
+            Page page = writePage(address >>> PAGE_SHIFT);
+            if (page == null) {
+                for (int i = 0; i < n; i++) {
+                    bus.write(address + i, src[offset + i]);
+                }
+            } else {
+                System.arraycopy(src, offset, page.data, pageOffset, n);
+            }
+
+            address += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Copies length bytes from src to dst. Like {@link System#arraycopy},
+     * the result is as if the source were first copied to a temporary
+     * buffer, so the ranges may overlap.
+     */
+    public void copy(int dst, int src, int length) {
+        // Copy backwards if the destination starts inside the source
+        boolean backwards = Integer.compareUnsigned(dst - src, length) < 0 && dst != src;
+        int remaining = length;
+        while (remaining > 0) {
+            int n;
+            int from;
+            int to;
+            if (backwards) {
+                from = src + remaining;
+                to = dst + remaining;
+                n = Math.min(remaining, Math.min(((from - 1) & PAGE_MASK) + 1, ((to - 1) & PAGE_MASK) + 1));
+                from -= n;
+                to -= n;
+            } else {
+                from = src + (length - remaining);
+                to = dst + (length - remaining);
+                n = Math.min(remaining, Math.min(PAGE_SIZE - (from & PAGE_MASK), PAGE_SIZE - (to & PAGE_MASK)));
+            }
+
+            Page source = readPage(from >>> PAGE_SHIFT);
+            Page target = writePage(to >>> PAGE_SHIFT);
+            if (source != null && target != null) {
+                // The source may be the page that writePage just copied; its data is still the same
+                System.arraycopy(source.data, from & PAGE_MASK, target.data, to & PAGE_MASK, n);
+            } else if (source == null && target != null && bus.device(from) == null) {
+                Arrays.fill(target.data, to & PAGE_MASK, (to & PAGE_MASK) + n, (byte) 0);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    int j = backwards ? n - 1 - i : i;
+                    write(to + j, read(from + j));
+                }
+            }
+
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Sets length bytes starting at the given address to a value.
+     */
+    public void fill(int address, byte value, int length) {
+        while (length > 0) {
+            int pageOffset = address & PAGE_MASK;
+            int n = Math.min(length, PAGE_SIZE - pageOffset);
+            Page page = writePage(address >>> PAGE_SHIFT);
+            if (page == null) {
+                for (int i = 0; i < n; i++) {
+                    bus.write(address + i, value);
+                }
+            } else {
+                Arrays.fill(page.data, pageOffset, pageOffset + n, value);
+            }
+
+            address += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Compares two ranges of unsigned bytes lexicographically.
+     *
+     * @return a negative number, zero or a positive number as the first
+     * range is less than, equal to or greater than the second
+     */
+    public int compare(int a, int b, int length) {
+        int offset = 0;
+        while (offset < length) {
+            int x = a + offset;
+            int y = b + offset;
+            int n = Math.min(length - offset, Math.min(PAGE_SIZE - (x & PAGE_MASK), PAGE_SIZE - (y & PAGE_MASK)));
+            Page first = readPage(x >>> PAGE_SHIFT);
+            Page second = readPage(y >>> PAGE_SHIFT);
+            int result;
+            if (first != null && second != null) {
+                result = Arrays.compareUnsigned(first.data, x & PAGE_MASK, (x & PAGE_MASK) + n,
+                        second.data, y & PAGE_MASK, (y & PAGE_MASK) + n);
+            } else {
+                result = 0;
+                for (int i = 0; i < n && result == 0; i++) {
+                    result = Integer.compare(read(x + i) & 0xFF, read(y + i) & 0xFF);
+                }
+            }
+
+            if (result != 0) {
+                return result;
+            }
+
+            offset += n;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Adds two ranges of count words element by element into a third. The
+     * result is as if the words were added one at a time in ascending
+     * order, so the ranges may overlap.
+     */
+    public void addWords(int dst, int a, int b, int count) {
+        elementwise(WordKernels.ADD, dst, a, b, count);
+    }
+
+    /**
+     * Like {@link #addWords(int, int, int, int)}, but subtracts the words of
+     * b from those of a.
+     */
+    public void subtractWords(int dst, int a, int b, int count) {
+        elementwise(WordKernels.SUB, dst, a, b, count);
+    }
+
+    /**
+     * Like {@link #addWords(int, int, int, int)}, but multiplies.
+     */
+    public void multiplyWords(int dst, int a, int b, int count) {
+        elementwise(WordKernels.MUL, dst, a, b, count);
+    }
+
+    /**
+     * Returns the wrapping sum of count words.
+     */
+    public int sumWords(int address, int count) {
+        int sum = 0;
+        int i = 0;
+        while (i < count) {
+            int x = address + i * 4;
+            int n = Math.min(count - i, wordsLeft(x));
+            byte[] data = n == 0 ? null : readData(x);
+            if (data == null) {
+                sum += readInt(x);
+                i++;
+                continue;
+            }
+
+            sum += WordKernels.INSTANCE.sum(data, x & PAGE_MASK, n);
+            i += n;
+        }
+
+        return sum;
+    }
+
+    /**
+     * Returns the wrapping dot product of two ranges of count words.
+     */
+    public int dotWords(int a, int b, int count) {
+        int sum = 0;
+        int i = 0;
+        while (i < count) {
+            int x = a + i * 4;
+            int y = b + i * 4;
+            int n = Math.min(count - i, Math.min(wordsLeft(x), wordsLeft(y)));
+            byte[] first = n == 0 ? null : readData(x);
+            byte[] second = n == 0 ? null : readData(y);
+            if (first == null || second == null) {
+                sum += readInt(x) * readInt(y);
+                i++;
+                continue;
+            }
+
+            sum += WordKernels.INSTANCE.dot(first, x & PAGE_MASK, second, y & PAGE_MASK, n);
+            i += n;
+        }
+
+        return sum;
+    }
+
+    /**
+     * The number of words the host handles per step in the word methods
+     * above: 1 unless the JVM runs with the jdk.incubator.vector module.
+     */
+    public static int vectorLanes() {
+        return WordKernels.INSTANCE.lanes();
+    }
+
+    private void elementwise(int op, int dst, int a, int b, int count) {
+        // The kernels read a whole run of words before writing it, which only
+        // differs from one word at a time if dst starts just after a source
+        if (overlapsAhead(dst, a, count) || overlapsAhead(dst, b, count)) {
+            for (int i = 0; i < count; i++) {
+                writeInt(dst + i * 4, WordKernels.apply(op, readInt(a + i * 4), readInt(b + i * 4)));
+            }
+
+            return;
+        }
+
+        int i = 0;
+        while (i < count) {
+            int x = a + i * 4;
+            int y = b + i * 4;
+            int z = dst + i * 4;
+            int n = Math.min(count - i, Math.min(wordsLeft(x), Math.min(wordsLeft(y), wordsLeft(z))));
+            // The sources may be pages that writePage just copied; their data is still the same
+            Page target = n == 0 ? null : writePage(z >>> PAGE_SHIFT);
+            byte[] first = target == null ? null : readData(x);
+            byte[] second = target == null ? null : readData(y);
+            if (first == null || second == null) {
+                // A word straddles two pages, or a device is involved
+                writeInt(z, WordKernels.apply(op, readInt(x), readInt(y)));
+                i++;
+                continue;
+            }
+
+            WordKernels.INSTANCE.elementwise(op, first, x & PAGE_MASK, second, y & PAGE_MASK, target.data, z & PAGE_MASK, n);
+            i += n;
+        }
+    }
+
+    private static boolean overlapsAhead(int dst, int src, int count) {
+        long distance = Integer.toUnsignedLong(dst - src);
+        return distance != 0 && distance < 4L * count;
+    }
+
+    /**
+     * The number of whole words from the given address to the end of its
+     * page.
+     */
+    private static int wordsLeft(int address) {
+        return (PAGE_SIZE - (address & PAGE_MASK)) / 4;
+    }
+
+    /**
+     * Returns the data of the page holding the given address, zeros if it is
+     * unallocated, or null if it is mapped to a device.
+     */
+    private byte[] readData(int address) {
+        Page page = readPage(address >>> PAGE_SHIFT);
+        if (page != null) {
+            return page.data;
+        }
+
+        return bus.device(address) == null ? ZEROS : null;
+    }
+
+    /**
+     * Copies data into memory starting at the given address.
+     */
+    public void load(int address, byte[] data) {
+        write(address, data, 0, data.length);
+    }
+
+    /**
+     * Whether the page has ever been written; unallocated pages read as
+     * zeros.
+     */
+    public boolean isAllocated(int index) {
+        Table table = tables[index >>> TABLE_SHIFT];
+        return table != null && table.pages[index & TABLE_MASK] != null;
+    }
+
+    /**
+     * Returns the indices of all allocated pages, in ascending order.
+     */
+    public synchronized int[] allocatedPages() {
+        int[] indices = new int[16];
+        int count = 0;
+        for (int t = 0; t < tables.length; t++) {
+            Table table = tables[t];
+            if (table == null) {
+                continue;
+            }
+
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                if (table.pages[i] != null) {
+                    if (count == indices.length) {
+                        indices = Arrays.copyOf(indices, count * 2);
+                    }
+
+                    indices[count++] = (t << TABLE_SHIFT) | i;
+                }
+            }
+        }
+
+        return Arrays.copyOf(indices, count);
+    }
+
+    /**
+     * Returns the indices of the pages written since the previous call (or
+     * since this memory was created), in ascending order, and starts a new
+     * interval.
+     *
+     * Must not be called while another thread writes to this memory.
+     */
+    public synchronized int[] clearDirty() {
+        int[] indices = dirtyPages(true);
+        lastWrite = null;
+        return indices;
+    }
+
+    /**
+     * Returns the indices of the pages written since the last call to
+     * {@link #clearDirty()}, in ascending order, without starting a new
+     * interval.
+     */
+    public synchronized int[] dirtyPages() {
+        return dirtyPages(false);
+    }
+
+    private int[] dirtyPages(boolean clear) {
+        int[] indices = new int[16];
+        int count = 0;
+        for (int t = 0; t < tables.length; t++) {
+            Table table = tables[t];
+            if (table == null) {
+                continue;
+            }
+
+            for (int w = 0; w < table.dirty.length; w++) {
+                long bits = table.dirty[w];
+                while (bits != 0) {
+                    if (count == indices.length) {
+                        indices = Arrays.copyOf(indices, count * 2);
+                    }
+
+                    indices[count++] = (t << TABLE_SHIFT) | (w << 6) | Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                }
+
+                if (clear) {
+                    table.dirty[w] = 0;
+                }
+            }
+
+            if (clear) {
+                table.writable = null;
+            }
+        }
+
+        return Arrays.copyOf(indices, count);
+    }
+
+    /**
+     * Makes every write to the given page notify the {@link #watchListener}.
+     */
+    public synchronized void watch(int index) {
+        Table table = tables[index >>> TABLE_SHIFT];
+        if (table == null) {
+            table = tables[index >>> TABLE_SHIFT] = new Table(new Page[TABLE_SIZE]);
+        }
+
+        int i = index & TABLE_MASK;
+        table.watched[i >> 6] |= 1L << i;
+        if (table.writable != null) {
+            table.writable[i] = null;
+        }
+
+        lastWrite = null;
+    }
+
+    public synchronized void unwatch(int index) {
+        Table table = tables[index >>> TABLE_SHIFT];
+        if (table != null) {
+            int i = index & TABLE_MASK;
+            table.watched[i >> 6] &= ~(1L << i);
+        }
+    }
+
+    /**
+     * Creates a copy of this memory that shares every page with it until
+     * either side writes to that page.
+     *
+     * Must not be called while another thread writes to this memory.
+     */
+    public synchronized Memory fork() {
+        Memory child = new Memory();
+        for (int t = 0; t < tables.length; t++) {
+            Table table = tables[t];
+            if (table == null) {
+                continue;
+            }
+
+            // Every page is now shared, so both sides must copy before writing
+            table.owned = null;
+            table.writable = null;
+            child.tables[t] = new Table(table.pages.clone());
+        }
+
+        child.bus.copyFrom(bus);
+
+        lastWrite = null;
+        return child;
+    }
+
+    private Page readPage(int index) {
+        Page page = lastRead;
+        if (page != null && page.index == index) {
+            return page;
+        }
+
+        Table table = tables[index >>> TABLE_SHIFT];
+        page = table == null ? null : table.pages[index & TABLE_MASK];
+        if (page != null) {
+            lastRead = page;
+        }
+
+        return page;
+    }
+
+    private Page writePage(int index) {
+        Page page = lastWrite;
+        if (page != null && page.index == index) {
+            return page;
+        }
+
+        Table table = tables[index >>> TABLE_SHIFT];
+        Page[] writable = table == null ? null : table.writable;
+        page = writable == null ? null : writable[index & TABLE_MASK];
+        if (page == null) {
+            page = writeFault(index);
+            if (page == null) {
+                // Mapped to a device
+                return null;
+            }
+
+            if (isWatched(index)) {
+                // So that the next write faults again
+                return page;
+            }
+        }
+
+        lastWrite = page;
+        return page;
+    }
+
+    /**
+     * Frees the given pages, which are about to be mapped to a device.
+     */
+    synchronized void discard(int firstPage, int count) {
+        for (int i = 0; i < count; i++) {
+            int index = firstPage + i;
+            Table table = tables[index >>> TABLE_SHIFT];
+            if (table == null) {
+                continue;
+            }
+
+            int slot = index & TABLE_MASK;
+            table.pages[slot] = null;
+            if (table.owned != null) {
+                table.owned[slot] = null;
+            }
+
+            if (table.writable != null) {
+                table.writable[slot] = null;
+            }
+
+            table.dirty[slot >> 6] &= ~(1L << slot);
+        }
+
+        lastRead = null;
+        lastWrite = null;
+    }
+
+    /**
+     * Makes a page exclusively owned by this memory, allocating or copying
+     * it as needed, and marks it dirty. Synchronized so that cores sharing
+     * this memory agree on a single copy; this is only reached on the first
+     * write to a page in each dirty interval.
+     *
+     * @return null if the page is mapped to a device
+     */
+    private synchronized Page writeFault(int index) {
+        if (bus.isMapped(index)) {
+            return null;
+        }
+
+        Table table = tables[index >>> TABLE_SHIFT];
+        if (table == null) {
+            table = tables[index >>> TABLE_SHIFT] = new Table(new Page[TABLE_SIZE]);
+        }
+
+        if (table.owned == null) {
+            table.owned = new Page[TABLE_SIZE];
+        }
+
+        if (table.writable == null) {
+            table.writable = new Page[TABLE_SIZE];
+        }
+
+        int i = index & TABLE_MASK;
+        Page page = table.owned[i];
+        if (page == null) {
+            Page shared = table.pages[i];
+            page = new Page(index, shared == null ? new byte[PAGE_SIZE] : shared.data.clone());
+            table.pages[i] = page;
+            table.owned[i] = page;
+            if (shared != null && lastRead == shared) {
+                lastRead = page;
+            }
+        }
+
+        table.dirty[i >> 6] |= 1L << i;
+        if ((table.watched[i >> 6] & (1L << i)) != 0) {
+            WatchListener listener = watchListener;
+            if (listener != null) {
+                listener.pageWritten(index);
+            }
+        } else {
+            table.writable[i] = page;
+        }
+
+        return page;
+    }
+
+    private boolean isWatched(int index) {
+        Table table = tables[index >>> TABLE_SHIFT];
+        int i = index & TABLE_MASK;
+        return (table.watched[i >> 6] & (1L << i)) != 0;
+    }
+}
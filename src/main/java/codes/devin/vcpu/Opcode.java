@@ -1,5 +1,7 @@
 package codes.devin.vcpu;
 
+import java.util.Arrays;
+
 public enum Opcode {
 
     NOP(0x00, 0),
@@ -8,6 +10,8 @@ public enum Opcode {
     SUB(0x03, 2, new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.any()), // source/destination, value
     MUL(0x04, 2, new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.any()), // source/destination, value
     DIV(0x05, 2, new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.any()), // source/destination, value
+    INC(0x06, 1, new ArgumentType[]{ArgumentType.REGISTER}), // source/destination
+    DEC(0x07, 1, new ArgumentType[]{ArgumentType.REGISTER}), // source/destination
     PUSH(0x11, 1, new ArgumentType[]{ArgumentType.REGISTER}), // destination
     POP(0x12, 1, new ArgumentType[]{ArgumentType.REGISTER}), // destination
     APUSH(0x21, 0),
@@ -17,10 +21,48 @@ public enum Opcode {
     JNZ(0x33, 2, ArgumentType.any(), new ArgumentType[]{ArgumentType.REGISTER}), // destination, test
     JLZ(0x34, 2, ArgumentType.any(), new ArgumentType[]{ArgumentType.REGISTER}), // destination, test
     JGZ(0x35, 2, ArgumentType.any(), new ArgumentType[]{ArgumentType.REGISTER}), // destination, test
+    CALL(0x36, 1, ArgumentType.any()), // destination
+    RET(0x37, 0),
+    IRET(0x38, 0),
+    JEQ(0x39, 3, ArgumentType.any(), new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.any()), // destination, first, second
+    JNE(0x3A, 3, ArgumentType.any(), new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.any()), // destination, first, second
+    JLT(0x3B, 3, ArgumentType.any(), new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.any()), // destination, first, second
+    JGE(0x3C, 3, ArgumentType.any(), new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.any()), // destination, first, second
+    JGT(0x3D, 3, ArgumentType.any(), new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.any()), // destination, first, second
+    JLE(0x3E, 3, ArgumentType.any(), new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.any()), // destination, first, second
+    LOOP(0x3F, 2, ArgumentType.any(), new ArgumentType[]{ArgumentType.REGISTER}), // destination, counter
+    CAS(0x41, 3, new ArgumentType[]{ArgumentType.CONSTANT, ArgumentType.REGISTER}, new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.any()), // address, expected/witness, new value
+    XADD(0x42, 2, new ArgumentType[]{ArgumentType.CONSTANT, ArgumentType.REGISTER}, new ArgumentType[]{ArgumentType.REGISTER}), // address, addend/previous value
+    FENCE(0x43, 0),
+    LOAD(0x61, 2, new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.addresses()), // destination, address of a 32-bit word
+    STORE(0x62, 2, ArgumentType.addresses(), ArgumentType.any()), // address of a 32-bit word, value
+    MEMCPY(0x63, 3, ArgumentType.addresses(), ArgumentType.addresses(), ArgumentType.any()), // destination, source, length
+    MEMSET(0x64, 3, ArgumentType.addresses(), ArgumentType.any(), ArgumentType.any()), // destination, byte, length
+    MEMCMP(0x65, 4, new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.addresses(), ArgumentType.addresses(), ArgumentType.any()), // result, first, second, length
+    VADD(0x71, 4, ArgumentType.addresses(), ArgumentType.addresses(), ArgumentType.addresses(), ArgumentType.any()), // destination, first, second, length in words
+    VSUB(0x72, 4, ArgumentType.addresses(), ArgumentType.addresses(), ArgumentType.addresses(), ArgumentType.any()), // destination, first, second, length in words
+    VMUL(0x73, 4, ArgumentType.addresses(), ArgumentType.addresses(), ArgumentType.addresses(), ArgumentType.any()), // destination, first, second, length in words
+    VSUM(0x74, 3, new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.addresses(), ArgumentType.any()), // result, words, length in words
+    VDOT(0x75, 4, new ArgumentType[]{ArgumentType.REGISTER}, ArgumentType.addresses(), ArgumentType.addresses(), ArgumentType.any()), // result, first, second, length in words
+    LIVT(0x50, 1, ArgumentType.any()), // vector table address
+    STI(0x51, 0),
+    CLI(0x52, 0),
+    TIMER(0x53, 1, ArgumentType.any()), // period in instructions, 0 to stop
+    BRK(0xCC, 0), // breakpoint trap
     HWID(0xF0, 0),
     INT(0xFE, 1, ArgumentType.any()), // interrupt number
     HLT(0xFF, 0);
 
+    private static final Opcode[] BY_OPCODE = new Opcode[256];
+
+    static {
+        // Unknown opcodes decode as NOP
+        Arrays.fill(BY_OPCODE, NOP);
+        for (Opcode opcode : Opcode.values()) {
+            BY_OPCODE[opcode.opcode & 0xFF] = opcode;
+        }
+    }
+
     public final byte opcode;
     public final int argumentCount;
     public final ArgumentType[][] argumentTypes;
@@ -32,12 +74,6 @@ public enum Opcode {
     }
 
     public static Opcode get(byte id) {
-        for (Opcode opcode : Opcode.values()) {
-            if (opcode.opcode == id) {
-                return opcode;
-            }
-        }
-
-        return Opcode.NOP;
+        return BY_OPCODE[id & 0xFF];
     }
 }
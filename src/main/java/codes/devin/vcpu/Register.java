@@ -9,6 +9,26 @@ public enum Register {
     SP(254),
     IP(255);
 
+    /**
+     * Register slots, as stored in predecoded instructions. A slot is the
+     * ordinal of the register.
+     */
+    public static final int SLOT_EAX = 0;
+    public static final int SLOT_EBX = 1;
+    public static final int SLOT_ECX = 2;
+    public static final int SLOT_EDX = 3;
+    public static final int SLOT_SP = 4;
+    public static final int SLOT_IP = 5;
+
+    private static final Register[] BY_SLOT = Register.values();
+    private static final Register[] BY_INDEX = new Register[256];
+
+    static {
+        for (Register register : Register.values()) {
+            BY_INDEX[register.index] = register;
+        }
+    }
+
     public final int index;
 
     private Register(int index) {
@@ -16,12 +36,10 @@ public enum Register {
     }
 
     public static Register index(int index) {
-        for (Register register : Register.values()) {
-            if (register.index == index) {
-                return register;
-            }
-        }
+        return BY_INDEX[index & 0xFF];
+    }
 
-        return null;
+    public static Register slot(int slot) {
+        return BY_SLOT[slot];
     }
 }
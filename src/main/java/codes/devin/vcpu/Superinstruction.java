@@ -0,0 +1,106 @@
+package codes.devin.vcpu;
+
+/**
+ * A sequence of instructions matched by a {@link Fusion} table, executed by
+ * the CPU as one.
+ *
+ * The most common shapes have specialized handlers; anything else runs the
+ * instructions in turn without returning to the dispatch loop.
+ */
+final class Superinstruction {
+
+    static final int GENERIC = 0;
+
+    /**
+     * ADD, SUB or MUL of a register and a constant or register, then a
+     * JEZ, JNZ, JLZ or JGZ to a constant address, e.g. a loop counter and its
+     * test.
+     */
+    static final int ARITHMETIC_BRANCH = 1;
+
+    /**
+     * MOV of a constant or register into a register, then ADD, SUB or MUL of
+     * a register and a constant or register.
+     */
+    static final int MOVE_ARITHMETIC = 2;
+
+    final Instruction[] instructions;
+    final int shape;
+
+    /**
+     * The address after the last instruction.
+     */
+    final int end;
+
+    /**
+     * The CPU's code generation when the instructions were last known to be
+     * in its instruction cache.
+     */
+    int generation;
+
+    Superinstruction(Instruction[] instructions, int generation) {
+        this.instructions = instructions;
+        this.generation = generation;
+        Instruction last = instructions[instructions.length - 1];
+        this.end = last.address + last.length;
+        this.shape = shape(instructions);
+    }
+
+    private static int shape(Instruction[] insns) {
+        if (insns.length != 2) {
+            return GENERIC;
+        }
+
+        Instruction first = insns[0];
+        Instruction second = insns[1];
+        if (isArithmetic(first) && isZeroTest(second)
+                && second.kinds[0] == Instruction.CONSTANT && isPlain(second, 1)) {
+            return ARITHMETIC_BRANCH;
+        }
+
+        if (first.opcode == Opcode.MOV && isPlain(first, 0) && first.kinds[0] == Instruction.REGISTER
+                && isPlain(first, 1) && isArithmetic(second)) {
+            return MOVE_ARITHMETIC;
+        }
+
+        return GENERIC;
+    }
+
+    private static boolean isArithmetic(Instruction insn) {
+        switch (insn.opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+                return isPlain(insn, 0) && isPlain(insn, 1);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isZeroTest(Instruction insn) {
+        switch (insn.opcode) {
+            case JEZ:
+            case JNZ:
+            case JLZ:
+            case JGZ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether an operand is a constant or a register other than IP, so that
+     * reading it has no side effects and does not depend on the IP.
+     */
+    private static boolean isPlain(Instruction insn, int index) {
+        switch (insn.kinds[index]) {
+            case Instruction.CONSTANT:
+                return true;
+            case Instruction.REGISTER:
+                return insn.values[index] != Register.SLOT_IP;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package codes.devin.vcpu;
+
+import java.nio.ByteOrder;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link WordKernels} on the host's preferred SIMD width. Only loaded when
+ * the jdk.incubator.vector module is present.
+ */
+final class VectorWordKernels extends WordKernels {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final ByteOrder ORDER = ByteOrder.BIG_ENDIAN;
+
+    @Override
+    int lanes() {
+        return SPECIES.length();
+    }
+
+    @Override
+    void elementwise(int op, byte[] a, int aOffset, byte[] b, int bOffset, byte[] dst, int dstOffset, int n) {
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        switch (op) {
+            case ADD:
+                for (; i < bound; i += SPECIES.length()) {
+                    load(a, aOffset, i).add(load(b, bOffset, i)).intoByteArray(dst, dstOffset + i * 4, ORDER);
+                }
+                break;
+            case SUB:
+                for (; i < bound; i += SPECIES.length()) {
+                    load(a, aOffset, i).sub(load(b, bOffset, i)).intoByteArray(dst, dstOffset + i * 4, ORDER);
+                }
+                break;
+            default:
+                for (; i < bound; i += SPECIES.length()) {
+                    load(a, aOffset, i).mul(load(b, bOffset, i)).intoByteArray(dst, dstOffset + i * 4, ORDER);
+                }
+                break;
+        }
+
+        super.elementwise(op, a, aOffset + i * 4, b, bOffset + i * 4, dst, dstOffset + i * 4, n - i);
+    }
+
+    @Override
+    int sum(byte[] a, int offset, int n) {
+        int bound = SPECIES.loopBound(n);
+        IntVector acc = IntVector.zero(SPECIES);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            acc = acc.add(load(a, offset, i));
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD) + super.sum(a, offset + i * 4, n - i);
+    }
+
+    @Override
+    int dot(byte[] a, int aOffset, byte[] b, int bOffset, int n) {
+        int bound = SPECIES.loopBound(n);
+        IntVector acc = IntVector.zero(SPECIES);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            acc = acc.add(load(a, aOffset, i).mul(load(b, bOffset, i)));
+        }
+
+        return acc.reduceLanes(VectorOperators.ADD) + super.dot(a, aOffset + i * 4, b, bOffset + i * 4, n - i);
+    }
+
+    private static IntVector load(byte[] data, int offset, int index) {
+        return IntVector.fromByteArray(SPECIES, data, offset + index * 4, ORDER);
+    }
+}
@@ -0,0 +1,13 @@
+package codes.devin.vcpu;
+
+/**
+ * Receives notice of writes to watched pages; see {@link Memory#watch(int)}.
+ */
+public interface WatchListener {
+
+    /**
+     * Called on the writing thread, before the write, while the memory is
+     * locked. Should return quickly.
+     */
+    void pageWritten(int index);
+}
@@ -0,0 +1,84 @@
+package codes.devin.vcpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Loops over big-endian words in page arrays, for the vector opcodes; see
+ * {@link Memory#addWords(int, int, int, int)}.
+ *
+ * This implementation handles one word at a time. When the JVM runs with
+ * --add-modules jdk.incubator.vector, {@link #INSTANCE} is a
+ * {@link VectorWordKernels} instead, which handles as many words per step
+ * as the host's SIMD registers hold. Both wrap around on overflow, so they
+ * give the same results.
+ */
+class WordKernels {
+
+    static final int ADD = 0;
+    static final int SUB = 1;
+    static final int MUL = 2;
+
+    static final WordKernels INSTANCE = select();
+
+    private static final VarHandle WORDS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private static WordKernels select() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (WordKernels) Class.forName("codes.devin.vcpu.VectorWordKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                // Use the scalar loops
+            }
+        }
+
+        return new WordKernels();
+    }
+
+    static int apply(int op, int a, int b) {
+        switch (op) {
+            case ADD:
+                return a + b;
+            case SUB:
+                return a - b;
+            default:
+                return a * b;
+        }
+    }
+
+    /**
+     * The number of words handled per step.
+     */
+    int lanes() {
+        return 1;
+    }
+
+    /**
+     * Combines n words of a and b into dst. The destination must not start
+     * after either source within the range.
+     */
+    void elementwise(int op, byte[] a, int aOffset, byte[] b, int bOffset, byte[] dst, int dstOffset, int n) {
+        for (int i = 0; i < n * 4; i += 4) {
+            WORDS.set(dst, dstOffset + i, apply(op, (int) WORDS.get(a, aOffset + i), (int) WORDS.get(b, bOffset + i)));
+        }
+    }
+
+    int sum(byte[] a, int offset, int n) {
+        int sum = 0;
+        for (int i = 0; i < n * 4; i += 4) {
+            sum += (int) WORDS.get(a, offset + i);
+        }
+
+        return sum;
+    }
+
+    int dot(byte[] a, int aOffset, byte[] b, int bOffset, int n) {
+        int sum = 0;
+        for (int i = 0; i < n * 4; i += 4) {
+            sum += (int) WORDS.get(a, aOffset + i) * (int) WORDS.get(b, bOffset + i);
+        }
+
+        return sum;
+    }
+}
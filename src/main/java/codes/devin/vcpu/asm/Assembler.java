@@ -3,184 +3,546 @@ package codes.devin.vcpu.asm;
 import codes.devin.vcpu.ArgumentType;
 import codes.devin.vcpu.Opcode;
 import codes.devin.vcpu.Register;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import codes.devin.vcpu.metrics.Profile;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
+/**
+ * Assembles source in a single streaming pass.
+ *
+ * Each line is either blank, a label (":name"), or an opcode followed by its
+ * operands, separated by spaces, tabs or commas. An operand is a register, a
+ * number (as accepted by {@link Long#decode(String)}), a label, or a memory
+ * operand: a number, label or register in square brackets.
+ *
+ * Label references are recorded as they are read and patched once the
+ * whole source has been read, so labels may be used before they are
+ * defined.
+ *
+ * Source may also be assembled into a relocatable {@link ObjectFile} to be
+ * linked with others. Two directives support this: ".export name" makes a
+ * label visible to other objects, and ".import name" declares a label
+ * defined by another object. When assembling a flat binary, exports are
+ * ignored and imports are undefined labels.
+ */
 public class Assembler {
 
-    private static final Pattern MEMORY_VALUE_PATTERN = Pattern.compile("\\[[A-Za-z0-9_]+\\]");
+    // Opcodes bucketed by the lower-case first letter of their name
+    private static final Opcode[][] OPCODES = new Opcode[26][];
 
-    private final String[] code;
-    private final Set<String> labelSet = new HashSet<>();
-    private final Map<String, Integer> labelMap = new HashMap<>(); // label name > line number
-    private ByteArrayOutputStream out;
+    private static final Register[] REGISTERS = Register.values();
+
+    static {
+        for (int i = 0; i < OPCODES.length; i++) {
+            List<Opcode> bucket = new ArrayList<>();
+            for (Opcode opcode : Opcode.values()) {
+                if (Character.toLowerCase(opcode.name().charAt(0)) == 'a' + i) {
+                    bucket.add(opcode);
+                }
+            }
+
+            OPCODES[i] = bucket.toArray(new Opcode[0]);
+        }
+    }
+
+    private final Reader in;
+    private final Map<String, Integer> labels = new HashMap<>(); // label name > address
+    private final Set<String> exports = new LinkedHashSet<>();
+    private final Set<String> imports = new LinkedHashSet<>();
+    private boolean parsed;
+
+    // Input
+    private final char[] input = new char[8192];
+    private int inputPos;
+    private int inputLimit;
+    private boolean eof;
+
+    // Current line
+    private char[] line = new char[256];
+    private int lineLength;
+    private int lineNumber;
+    private int pos;
+    private int tokenStart;
+    private int tokenEnd;
+
+    // Output
+    private byte[] out = new byte[4096];
+    private int size;
+
+    // Label references, patched at the end
+    private int[] fixupPositions = new int[64];
+    private int[] fixupLines = new int[64];
+    private final List<String> fixupLabels = new ArrayList<>();
 
     public Assembler(String code) {
-        this.code = code.split("\n");
+        this(new StringReader(code));
     }
 
+    /**
+     * Assembles the given lines.
+     */
     public Assembler(String... code) {
-        this.code = code;
+        this(String.join("\n", code));
+    }
+
+    /**
+     * Assembles source read from the given reader, which is not closed.
+     */
+    public Assembler(Reader in) {
+        this.in = in;
     }
 
+    /**
+     * Assembles a flat binary, to be loaded at address 0.
+     */
     public byte[] assemble() throws AssemblyException {
-        if (out != null && out.size() > 0) {
-            return out.toByteArray();
+        parse();
+
+        byte[] code = Arrays.copyOf(out, size);
+        for (int i = 0; i < fixupLabels.size(); i++) {
+            String label = fixupLabels.get(i);
+            Integer address = labels.get(label);
+            if (address == null) {
+                throw new AssemblyException("line " + fixupLines[i] + ": undefined label: " + label);
+            }
+
+            putInt(code, fixupPositions[i], address);
         }
 
-        try {
-            // Pre-scan labels
-            for (int i = 0; i < code.length; i++) {
-                int lineNumber = i + 1;
-                String line = code[i];
+        return code;
+    }
 
-                preScanLabels(lineNumber, line);
+    /**
+     * Assembles a flat binary like {@link #assemble()}, then folds
+     * constants, threads jumps and removes dead code; see {@link Optimizer}
+     * for what is assumed of the source. Afterwards {@link #labels()} gives
+     * the optimized addresses.
+     */
+    public byte[] assembleOptimized() throws AssemblyException {
+        return optimize(assemble(), true, null);
+    }
+
+    /**
+     * Assembles a flat binary with its basic blocks laid out by a
+     * {@link Profile} of the same source assembled by {@link #assemble()},
+     * optionally also optimizing it like {@link #assembleOptimized()}.
+     *
+     * @throws IOException if the profile cannot be read
+     */
+    public byte[] assembleWithProfile(Reader profile, boolean optimize) throws AssemblyException, IOException {
+        byte[] code = assemble();
+        return optimize(code, optimize, Profile.read(profile, labels));
+    }
+
+    private byte[] optimize(byte[] code, boolean optimize, Profile profile) {
+        Map<Integer, String> references = new HashMap<>();
+        for (int i = 0; i < fixupLabels.size(); i++) {
+            references.put(fixupPositions[i], fixupLabels.get(i));
+        }
+
+        Optimizer optimizer = new Optimizer(code, labels, references, optimize, profile);
+        byte[] optimized = optimizer.optimize();
+        if (optimized != code) {
+            labels.clear();
+            labels.putAll(optimizer.labels());
+        }
+
+        return optimized;
+    }
+
+    /**
+     * Returns the address of every label defined so far, relative to the
+     * start of the output. Complete once the source has been assembled.
+     */
+    public Map<String, Integer> labels() {
+        return Collections.unmodifiableMap(labels);
+    }
+
+    /**
+     * Assembles a relocatable object. Label addresses are relative to the
+     * start of the object.
+     */
+    public ObjectFile assembleObject() throws AssemblyException {
+        parse();
+
+        Map<String, Integer> exported = new LinkedHashMap<>();
+        for (String name : exports) {
+            Integer address = labels.get(name);
+            if (address == null) {
+                throw new AssemblyException("exported label is not defined: " + name);
             }
 
-            // Two passes, to allow for jumps preceding labels
-            for (int pass = 1; pass <= 2; pass++) {
-                out = new ByteArrayOutputStream();
-                for (int i = 0; i < code.length; i++) {
-                    int lineNumber = i + 1;
-                    String line = code[i];
+            exported.put(name, address);
+        }
 
-                    assembleInstruction(pass, lineNumber, line);
-                }
+        List<String> imported = new ArrayList<>(imports);
+        Map<String, Integer> importIndices = new HashMap<>();
+        for (String name : imported) {
+            if (labels.containsKey(name)) {
+                throw new AssemblyException("imported label is also defined: " + name);
             }
 
-            return out.toByteArray();
+            importIndices.put(name, importIndices.size());
+        }
+
+        byte[] code = Arrays.copyOf(out, size);
+        int[] symbols = new int[fixupLabels.size()];
+        for (int i = 0; i < fixupLabels.size(); i++) {
+            String label = fixupLabels.get(i);
+            Integer address = labels.get(label);
+            if (address != null) {
+                putInt(code, fixupPositions[i], address);
+                symbols[i] = ObjectFile.LOCAL;
+            } else if (importIndices.containsKey(label)) {
+                symbols[i] = importIndices.get(label);
+            } else {
+                throw new AssemblyException("line " + fixupLines[i] + ": undefined label: " + label);
+            }
+        }
+
+        return new ObjectFile(code, exported, imported, Arrays.copyOf(fixupPositions, symbols.length), symbols);
+    }
+
+    private void parse() throws AssemblyException {
+        if (parsed) {
+            return;
+        }
+
+        try {
+            while (readLine()) {
+                assembleLine();
+            }
         } catch (IOException ex) {
             throw new AssemblyException(ex);
         }
+
+        parsed = true;
     }
 
-    private void preScanLabels(int lineNumber, String line) throws AssemblyException {
-        line = line.trim();
+    /**
+     * Reads the next line into {@link #line}, without its terminator.
+     *
+     * @return false at the end of the input
+     */
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        pos = 0;
+        while (true) {
+            if (inputPos == inputLimit) {
+                if (eof || !fill()) {
+                    eof = true;
+                    if (lineLength > 0) {
+                        lineNumber++;
+                        return true;
+                    }
+
+                    return false;
+                }
+            }
 
-        if (line.startsWith(":")) {
-            String labelName = line.substring(1);
-            if (labelSet.contains(labelName)) {
-                throw new AssemblyException(lineNumber, line, "duplicate label: " + labelName);
+            char c = input[inputPos++];
+            if (c == '\n') {
+                lineNumber++;
+                return true;
             }
 
-            labelSet.add(labelName);
+            if (c == '\r') {
+                continue;
+            }
+
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, lineLength * 2);
+            }
+
+            line[lineLength++] = c;
         }
     }
 
-    private void assembleInstruction(int pass, int lineNumber, String line) throws AssemblyException, IOException {
-        line = line.trim();
+    private boolean fill() throws IOException {
+        int n = in.read(input, 0, input.length);
+        if (n <= 0) {
+            return false;
+        }
 
-        // Is this a label?
-        if (line.startsWith(":")) {
-            if (pass == 1) {
-                // This _is_ a label
-                String labelName = line.substring(1);
-                if (labelMap.containsKey(labelName)) {
-                    throw new AssemblyException(lineNumber, line, "duplicate label: " + labelName);
-                }
+        inputPos = 0;
+        inputLimit = n;
+        return true;
+    }
+
+    private void assembleLine() throws AssemblyException {
+        if (!nextToken()) {
+            // Blank line
+            return;
+        }
 
-                labelMap.put(labelName, out.size());
+        if (line[tokenStart] == ':') {
+            // Everything after the colon is the label name
+            String name = new String(line, tokenStart + 1, lineLength - tokenStart - 1).trim();
+            if (name.isEmpty()) {
+                throw error("missing label name");
+            }
+
+            if (labels.putIfAbsent(name, size) != null) {
+                throw error("duplicate label: " + name);
             }
 
             return;
         }
 
-        // Get rid of commas; they're nice, but unnecessary
-        line = line.replace(",", "");
+        if (line[tokenStart] == '.') {
+            directive();
+            return;
+        }
 
-        // Split up the line into components
-        String[] components = line.split(" ");
+        Opcode opcode = opcode();
+        if (opcode == null) {
+            throw error("invalid opcode: " + new String(line, tokenStart, tokenEnd - tokenStart).toUpperCase());
+        }
 
-        Opcode opcode;
-        try {
-            opcode = Opcode.valueOf(components[0].toUpperCase());
-        } catch (IllegalArgumentException ex) {
-            throw new AssemblyException(lineNumber, line, "invalid opcode: " + components[0].toUpperCase());
-        }
-
-        if (components.length - 1 < opcode.argumentCount) {
-            throw new AssemblyException(lineNumber, line, "invalid number of arguments for " + opcode + ": expected " + opcode.argumentCount + ", got " + (components.length - 1));
-        }
-
-        out.write(opcode.opcode);
-        if (opcode.argumentCount > 0) {
-            byte flags = 0;
-            byte[] args = null;
-
-            try (ByteArrayOutputStream argsOut = new ByteArrayOutputStream()) {
-                try (DataOutputStream argsDos = new DataOutputStream(argsOut)) {
-                    for (int j = 0; j < opcode.argumentCount; j++) {
-                        int cmptIndex = j + 1;
-                        String argString = components[cmptIndex];
-                        ArgumentType type = getArgumentType(lineNumber, line, argString);
-
-                        byte typeFlag = (byte) (type.index << (8 - ((j + 1) * 2)));
-                        flags |= typeFlag;
-
-                        switch (type) {
-                            case CONSTANT:
-                            case MEMORY_VALUE:
-                                String sanitized = argString.replace("[", "").replace("]", "");
-                                try {
-                                    argsDos.writeInt(Integer.decode(sanitized));
-                                } catch (NumberFormatException ex) {
-                                    if (labelMap.containsKey(sanitized)) {
-                                        argsDos.writeInt(labelMap.get(sanitized));
-                                    } else {
-                                        if (pass == 1) {
-                                            // First pass, no big deal
-                                            argsDos.writeInt(0);
-                                        } else {
-                                            // Now it is a big deal, because we should know where the labels are
-                                            throw new AssemblyException(lineNumber, line, "undefined label: " + sanitized);
-                                        }
-                                    }
-                                }
-                                break;
-                            case REGISTER:
-                                argsDos.write(Register.valueOf(argString.toUpperCase()).index);
-                                break;
-                        }
-                    }
-                }
+        emit(opcode.opcode);
+        if (opcode.argumentCount == 0) {
+            return;
+        }
 
-                args = argsOut.toByteArray();
+        int flagsPos = size;
+        emit((byte) 0);
+        int flags = 0;
+        for (int i = 0; i < opcode.argumentCount; i++) {
+            if (!nextToken()) {
+                throw error("invalid number of arguments for " + opcode + ": expected " + opcode.argumentCount + ", got " + i);
             }
 
-            out.write(flags);
-            if (args != null) {
-                out.write(args);
-            }
+            flags |= operand().index << (6 - i * 2);
         }
+
+        out[flagsPos] = (byte) flags;
     }
 
-    private ArgumentType getArgumentType(int lineNumber, String line, String arg) throws AssemblyException {
-        try {
-            Register.valueOf(arg.toUpperCase());
+    private void directive() throws AssemblyException {
+        String name = new String(line, tokenStart, tokenEnd - tokenStart);
+        Set<String> symbols;
+        if (name.equals(".export")) {
+            symbols = exports;
+        } else if (name.equals(".import")) {
+            symbols = imports;
+        } else {
+            throw error("unknown directive: " + name);
+        }
+
+        if (!nextToken()) {
+            throw error("missing label name");
+        }
+
+        do {
+            symbols.add(new String(line, tokenStart, tokenEnd - tokenStart));
+        } while (nextToken());
+    }
+
+    /**
+     * Assembles the current token as an operand.
+     *
+     * @return the operand's type
+     */
+    private ArgumentType operand() throws AssemblyException {
+        Register register = register();
+        if (register != null) {
+            emit((byte) register.index);
             return ArgumentType.REGISTER;
-        } catch (IllegalArgumentException ex) {
-            // Ignore it
         }
 
-        if (MEMORY_VALUE_PATTERN.matcher(arg).matches()) {
+        if (line[tokenStart] == '[') {
+            if (tokenEnd - tokenStart < 3 || line[tokenEnd - 1] != ']') {
+                throw error("unknown argument type");
+            }
+
+            tokenStart++;
+            tokenEnd--;
+            Register base = register();
+            if (base != null) {
+                emit((byte) base.index);
+                return ArgumentType.INDIRECT;
+            }
+
+            value();
             return ArgumentType.MEMORY_VALUE;
         }
 
-        if (labelSet.contains(arg)) {
-            return ArgumentType.CONSTANT;
+        value();
+        return ArgumentType.CONSTANT;
+    }
+
+    /**
+     * Assembles the current token as a 32-bit number or label address.
+     */
+    private void value() throws AssemblyException {
+        char first = line[tokenStart];
+        if ((first >= '0' && first <= '9') || first == '-' || first == '+' || first == '#') {
+            emitInt(number());
+            return;
         }
 
-        try {
-            Long.decode(arg);
-            return ArgumentType.CONSTANT;
-        } catch (IllegalArgumentException ex) {
-            throw new AssemblyException(lineNumber, line, "unknown argument type");
+        fixup(new String(line, tokenStart, tokenEnd - tokenStart));
+        emitInt(0);
+    }
+
+    /**
+     * Parses the current token like {@link Long#decode(String)}, keeping the
+     * low 32 bits so that the whole unsigned range is accepted.
+     */
+    private int number() throws AssemblyException {
+        int i = tokenStart;
+        boolean negative = false;
+        if (line[i] == '-' || line[i] == '+') {
+            negative = line[i] == '-';
+            i++;
+        }
+
+        int radix = 10;
+        if (i + 1 < tokenEnd && line[i] == '0' && (line[i + 1] == 'x' || line[i + 1] == 'X')) {
+            radix = 16;
+            i += 2;
+        } else if (i < tokenEnd && line[i] == '#') {
+            radix = 16;
+            i++;
+        } else if (i + 1 < tokenEnd && line[i] == '0') {
+            radix = 8;
+            i++;
+        }
+
+        if (i == tokenEnd) {
+            throw error("invalid number: " + new String(line, tokenStart, tokenEnd - tokenStart));
+        }
+
+        long value = 0;
+        for (; i < tokenEnd; i++) {
+            int digit = Character.digit(line[i], radix);
+            if (digit < 0 || value > (Long.MAX_VALUE - digit) / radix) {
+                throw error("invalid number: " + new String(line, tokenStart, tokenEnd - tokenStart));
+            }
+
+            value = value * radix + digit;
+        }
+
+        return (int) (negative ? -value : value);
+    }
+
+    private Opcode opcode() {
+        int bucket = Character.toLowerCase(line[tokenStart]) - 'a';
+        if (bucket < 0 || bucket >= OPCODES.length) {
+            return null;
+        }
+
+        for (Opcode opcode : OPCODES[bucket]) {
+            if (tokenEquals(opcode.name())) {
+                return opcode;
+            }
+        }
+
+        return null;
+    }
+
+    private Register register() {
+        for (Register register : REGISTERS) {
+            if (tokenEquals(register.name())) {
+                return register;
+            }
         }
+
+        return null;
+    }
+
+    /**
+     * Whether the current token equals the given upper-case name, ignoring
+     * case.
+     */
+    private boolean tokenEquals(String name) {
+        if (tokenEnd - tokenStart != name.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toUpperCase(line[tokenStart + i]) != name.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Advances to the next token on the current line.
+     *
+     * @return false if there are no more tokens
+     */
+    private boolean nextToken() {
+        while (pos < lineLength && isSeparator(line[pos])) {
+            pos++;
+        }
+
+        if (pos == lineLength) {
+            return false;
+        }
+
+        tokenStart = pos;
+        while (pos < lineLength && !isSeparator(line[pos])) {
+            pos++;
+        }
+
+        tokenEnd = pos;
+        return true;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == ',';
+    }
+
+    private void fixup(String label) {
+        int index = fixupLabels.size();
+        if (index == fixupPositions.length) {
+            fixupPositions = Arrays.copyOf(fixupPositions, index * 2);
+            fixupLines = Arrays.copyOf(fixupLines, index * 2);
+        }
+
+        fixupPositions[index] = size;
+        fixupLines[index] = lineNumber;
+        fixupLabels.add(label);
+    }
+
+    private static void putInt(byte[] dst, int at, int value) {
+        dst[at] = (byte) (value >>> 24);
+        dst[at + 1] = (byte) (value >>> 16);
+        dst[at + 2] = (byte) (value >>> 8);
+        dst[at + 3] = (byte) value;
+    }
+
+    private void emit(byte b) {
+        if (size == out.length) {
+            out = Arrays.copyOf(out, size * 2);
+        }
+
+        out[size++] = b;
+    }
+
+    private void emitInt(int value) {
+        if (size + 4 > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, size + 4));
+        }
+
+        putInt(out, size, value);
+        size += 4;
+    }
+
+    private AssemblyException error(String message) {
+        return new AssemblyException(lineNumber, new String(line, 0, lineLength).trim(), message);
     }
 }
@@ -0,0 +1,112 @@
+package codes.devin.vcpu.asm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Relocatable output of {@link Assembler#assembleObject()}.
+ *
+ * Each relocation is the position of a 32-bit big-endian address in
+ * {@link #code}. A {@link #LOCAL} relocation holds an address relative to
+ * the start of this object; any other relocation refers to an import by
+ * index and holds an offset to add to that symbol's address.
+ *
+ * Serialized as the magic, the version, the code, the exports (name and
+ * address), the import names, and the relocations (position and symbol).
+ */
+public final class ObjectFile {
+
+    public static final int MAGIC = 0x564F424A; // "VOBJ"
+    public static final int VERSION = 1;
+
+    public static final int LOCAL = -1;
+
+    public final byte[] code;
+    public final Map<String, Integer> exports;
+    public final List<String> imports;
+    public final int[] relocationPositions;
+    public final int[] relocationSymbols;
+
+    public ObjectFile(byte[] code, Map<String, Integer> exports, List<String> imports,
+            int[] relocationPositions, int[] relocationSymbols) {
+        this.code = code;
+        this.exports = Collections.unmodifiableMap(exports);
+        this.imports = Collections.unmodifiableList(imports);
+        this.relocationPositions = relocationPositions;
+        this.relocationSymbols = relocationSymbols;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(code.length);
+        dos.write(code);
+
+        dos.writeInt(exports.size());
+        for (Map.Entry<String, Integer> export : exports.entrySet()) {
+            dos.writeUTF(export.getKey());
+            dos.writeInt(export.getValue());
+        }
+
+        dos.writeInt(imports.size());
+        for (String name : imports) {
+            dos.writeUTF(name);
+        }
+
+        dos.writeInt(relocationPositions.length);
+        for (int i = 0; i < relocationPositions.length; i++) {
+            dos.writeInt(relocationPositions[i]);
+            dos.writeInt(relocationSymbols[i]);
+        }
+
+        dos.flush();
+    }
+
+    public static ObjectFile read(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("not an object file");
+        }
+
+        if (dis.readInt() != VERSION) {
+            throw new IOException("unsupported object file version");
+        }
+
+        byte[] code = new byte[dis.readInt()];
+        dis.readFully(code);
+
+        int exportCount = dis.readInt();
+        Map<String, Integer> exports = new LinkedHashMap<>();
+        for (int i = 0; i < exportCount; i++) {
+            exports.put(dis.readUTF(), dis.readInt());
+        }
+
+        int importCount = dis.readInt();
+        List<String> imports = new ArrayList<>(importCount);
+        for (int i = 0; i < importCount; i++) {
+            imports.add(dis.readUTF());
+        }
+
+        int relocationCount = dis.readInt();
+        int[] positions = new int[relocationCount];
+        int[] symbols = new int[relocationCount];
+        for (int i = 0; i < relocationCount; i++) {
+            positions[i] = dis.readInt();
+            symbols[i] = dis.readInt();
+            if (positions[i] < 0 || positions[i] > code.length - 4 || symbols[i] < LOCAL || symbols[i] >= importCount) {
+                throw new IOException("corrupt relocation " + i);
+            }
+        }
+
+        return new ObjectFile(code, exports, imports, positions, symbols);
+    }
+}
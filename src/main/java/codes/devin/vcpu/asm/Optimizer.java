@@ -0,0 +1,1127 @@
+package codes.devin.vcpu.asm;
+
+import codes.devin.vcpu.Instruction;
+import codes.devin.vcpu.Memory;
+import codes.devin.vcpu.Opcode;
+import codes.devin.vcpu.Register;
+import codes.devin.vcpu.interrupt.Interrupt;
+import codes.devin.vcpu.metrics.Profile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimizes assembled code; see {@link Assembler#assembleOptimized()}.
+ *
+ * The code is decoded back into instructions and split into basic blocks at
+ * labels and after control transfers. Direct jumps and calls refer to
+ * blocks rather than addresses. The following passes then run until none
+ * of them changes anything:
+ * <ul>
+ * <li>constant propagation over the control-flow graph, folding arithmetic
+ * on known values, deciding conditional jumps and dropping moves of values
+ * a register already holds, and additions of 0 and multiplications by 1;</li>
+ * <li>dead store elimination within each block, so that a register write
+ * overwritten before it is read is dropped;</li>
+ * <li>jump threading, so that jumps to jumps go straight to the final
+ * target, and jumps to RET or HLT become that instruction;</li>
+ * <li>removal of blocks that cannot be reached, and of jumps to the next
+ * instruction.</li>
+ * </ul>
+ * Finally the blocks are laid out again and every label reference is
+ * resolved to its new address. Without a profile the original order is
+ * kept. With one, blocks are chained so that the most frequent transfers
+ * between them fall through, conditional jumps are inverted where that
+ * lets the likely successor follow, and the chains are ordered by how hot
+ * they are, so that never executed code ends up at the end. The passes
+ * above are optional, so that a program may be laid out but otherwise left
+ * as written.
+ *
+ * Execution starts at address 0, and any label used other than as the
+ * target of a direct jump or call may be entered indirectly. Code must only
+ * be addressed through labels: the code is returned unchanged if it jumps
+ * to a numeric address or reads the IP register, since either depends on
+ * the layout. Registers are assumed to be preserved across interrupts.
+ */
+final class Optimizer {
+
+    private static final int GENERAL_REGISTERS = 4;
+    private static final int ALL = (1 << GENERAL_REGISTERS) - 1;
+    private static final int MAX_ROUNDS = 16;
+
+    private static final class Insn {
+
+        Opcode opcode;
+        // The address in the original code, for profile lookups
+        int address = -1;
+        int[] kinds;
+        int[] values;
+        // The label each operand refers to, or null
+        String[] labels;
+        // The block a direct jump or call goes to
+        Block target;
+
+        Insn(Opcode opcode, int[] kinds, int[] values, String[] labels) {
+            this.opcode = opcode;
+            this.kinds = kinds;
+            this.values = values;
+            this.labels = labels;
+        }
+    }
+
+    private static final class Block {
+
+        final List<String> labels = new ArrayList<>();
+        final List<Insn> insns = new ArrayList<>();
+        // The address in the original code
+        int start;
+        boolean root;
+        boolean reachable;
+        final List<Block> successors = new ArrayList<>();
+        final List<Block> predecessors = new ArrayList<>();
+        int address;
+
+        // Constant propagation: known registers on entry
+        boolean visited;
+        int known;
+        final int[] constants = new int[GENERAL_REGISTERS];
+
+        // Layout
+        Block fallthrough;
+        List<Block> chain;
+        long count;
+    }
+
+    /**
+     * A possible fall-through between blocks, weighted by how often it
+     * would be taken.
+     */
+    private static final class Edge {
+
+        final Block from;
+        final Block to;
+        final long weight;
+        // Must fall through: to is where a call or interrupt returns
+        final boolean required;
+
+        Edge(Block from, Block to, long weight, boolean required) {
+            this.from = from;
+            this.to = to;
+            this.weight = weight;
+            this.required = required;
+        }
+    }
+
+    private final byte[] code;
+    private final Map<String, Integer> labels;
+    private final Map<Integer, String> references;
+    private final boolean optimize;
+    private final Profile profile;
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final Map<String, Block> blocksByLabel = new HashMap<>();
+    private final Map<String, Integer> optimizedLabels = new LinkedHashMap<>();
+
+    /**
+     * @param references the label whose address is at each position in the
+     * code
+     * @param optimize whether to run the optimization passes
+     * @param profile the counts to lay out the code by, in terms of its
+     * current addresses, or null to keep the original order
+     */
+    Optimizer(byte[] code, Map<String, Integer> labels, Map<Integer, String> references, boolean optimize, Profile profile) {
+        this.code = code;
+        this.labels = labels;
+        this.references = references;
+        this.optimize = optimize;
+        this.profile = profile;
+    }
+
+    /**
+     * @return the optimized code, or the original code if it cannot be
+     * optimized safely
+     */
+    byte[] optimize() {
+        if (!split()) {
+            return code;
+        }
+
+        for (int round = 0; optimize && round < MAX_ROUNDS; round++) {
+            link();
+            boolean changed = propagateConstants();
+            changed |= eliminateDeadStores();
+            changed |= threadJumps();
+            link();
+            changed |= removeUnreachable();
+            changed |= removeJumpsToNext();
+            if (!changed) {
+                break;
+            }
+        }
+
+        if (profile != null) {
+            layout();
+            removeJumpsToNext();
+        }
+
+        return emit();
+    }
+
+    /**
+     * The label addresses in the optimized code. Labels of removed code are
+     * left out.
+     */
+    Map<String, Integer> labels() {
+        return optimizedLabels;
+    }
+
+    /**
+     * Decodes the code into blocks.
+     *
+     * @return false if the code cannot be optimized
+     */
+    private boolean split() {
+        Map<Integer, List<String>> labelsAt = new HashMap<>();
+        for (Map.Entry<String, Integer> label : labels.entrySet()) {
+            labelsAt.computeIfAbsent(label.getValue(), k -> new ArrayList<>()).add(label.getKey());
+        }
+
+        Memory memory = new Memory();
+        memory.load(0, code);
+        Block block = null;
+        boolean ended = true;
+        int pos = 0;
+        while (true) {
+            List<String> here = labelsAt.get(pos);
+            if (ended || here != null || pos == code.length) {
+                block = new Block();
+                block.start = pos;
+                blocks.add(block);
+                if (here != null) {
+                    block.labels.addAll(here);
+                    for (String name : here) {
+                        blocksByLabel.put(name, block);
+                    }
+                }
+            }
+
+            if (pos >= code.length) {
+                // The last block holds labels at the end of the code
+                block.root = true;
+                break;
+            }
+
+            Instruction decoded;
+            try {
+                decoded = Instruction.decode(memory, pos);
+            } catch (Interrupt ex) {
+                return false;
+            }
+
+            if (pos + decoded.length > code.length) {
+                return false;
+            }
+
+            Insn insn = new Insn(decoded.opcode, decoded.kinds.clone(), decoded.values.clone(), new String[decoded.kinds.length]);
+            insn.address = pos;
+            int operand = pos + (insn.kinds.length > 0 ? 2 : 1);
+            for (int i = 0; i < insn.kinds.length; i++) {
+                insn.labels[i] = references.get(operand);
+                operand += isWord(insn.kinds[i]) ? 4 : 1;
+            }
+
+            if (readsIp(insn) || (isJump(insn.opcode) && insn.kinds[0] == Instruction.CONSTANT && insn.labels[0] == null)) {
+                return false;
+            }
+
+            block.insns.add(insn);
+            ended = endsBlock(insn);
+            pos += decoded.length;
+        }
+
+        blocks.get(0).root = true;
+        for (Block b : blocks) {
+            for (Insn insn : b.insns) {
+                for (int i = 0; i < insn.labels.length; i++) {
+                    if (insn.labels[i] == null) {
+                        continue;
+                    }
+
+                    Block labelled = blocksByLabel.get(insn.labels[i]);
+                    if (i == 0 && isDirect(insn)) {
+                        insn.target = labelled;
+                    } else {
+                        // The address may be jumped to indirectly
+                        labelled.root = true;
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Recomputes the control-flow graph and which blocks are reachable.
+     */
+    private void link() {
+        for (Block block : blocks) {
+            block.successors.clear();
+            block.predecessors.clear();
+            block.reachable = false;
+        }
+
+        for (int b = 0; b < blocks.size(); b++) {
+            Block block = blocks.get(b);
+            Block next = b + 1 < blocks.size() ? blocks.get(b + 1) : null;
+            Insn last = block.insns.isEmpty() ? null : block.insns.get(block.insns.size() - 1);
+            if (last != null && last.target != null) {
+                block.successors.add(last.target);
+            }
+
+            if (next != null && (last == null || fallsThrough(last))) {
+                block.successors.add(next);
+            }
+
+            for (Block successor : block.successors) {
+                successor.predecessors.add(block);
+            }
+        }
+
+        Deque<Block> work = new ArrayDeque<>();
+        for (Block block : blocks) {
+            if (block.root) {
+                block.reachable = true;
+                work.add(block);
+            }
+        }
+
+        while (!work.isEmpty()) {
+            for (Block successor : work.poll().successors) {
+                if (!successor.reachable) {
+                    successor.reachable = true;
+                    work.add(successor);
+                }
+            }
+        }
+    }
+
+    private boolean propagateConstants() {
+        for (Block block : blocks) {
+            block.visited = block.root;
+            block.known = 0;
+        }
+
+        // Find the registers known on entry to each block
+        Deque<Block> work = new ArrayDeque<>();
+        Set<Block> queued = new HashSet<>();
+        for (Block block : blocks) {
+            if (block.reachable) {
+                work.add(block);
+                queued.add(block);
+            }
+        }
+
+        int[] constants = new int[GENERAL_REGISTERS];
+        while (!work.isEmpty()) {
+            Block block = work.poll();
+            queued.remove(block);
+            if (!block.visited) {
+                continue;
+            }
+
+            System.arraycopy(block.constants, 0, constants, 0, GENERAL_REGISTERS);
+            int known = block.known;
+            for (Insn insn : block.insns) {
+                known = transfer(insn, known, constants);
+            }
+
+            for (Block successor : block.successors) {
+                if (meet(successor, known, constants) && queued.add(successor)) {
+                    work.add(successor);
+                }
+            }
+        }
+
+        // Rewrite each block with what is known
+        boolean changed = false;
+        for (Block block : blocks) {
+            if (!block.reachable || !block.visited) {
+                continue;
+            }
+
+            System.arraycopy(block.constants, 0, constants, 0, GENERAL_REGISTERS);
+            int known = block.known;
+            for (int i = 0; i < block.insns.size(); i++) {
+                Insn insn = block.insns.get(i);
+                Insn rewritten = rewrite(insn, known, constants);
+                if (rewritten != insn) {
+                    changed = true;
+                    if (rewritten == null) {
+                        block.insns.remove(i--);
+                        continue;
+                    }
+
+                    rewritten.address = insn.address;
+
+                    block.insns.set(i, rewritten);
+                }
+
+                known = transfer(rewritten, known, constants);
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Merges the registers known at the end of a predecessor into those
+     * known on entry to a block.
+     *
+     * @return whether the block's entry state changed
+     */
+    private static boolean meet(Block block, int known, int[] constants) {
+        if (block.root) {
+            return false;
+        }
+
+        if (!block.visited) {
+            block.visited = true;
+            block.known = known;
+            System.arraycopy(constants, 0, block.constants, 0, GENERAL_REGISTERS);
+            return true;
+        }
+
+        int merged = block.known & known;
+        for (int r = 0; r < GENERAL_REGISTERS; r++) {
+            if ((merged & (1 << r)) != 0 && block.constants[r] != constants[r]) {
+                merged &= ~(1 << r);
+            }
+        }
+
+        if (merged == block.known) {
+            return false;
+        }
+
+        block.known = merged;
+        return true;
+    }
+
+    /**
+     * Updates the known registers for the effect of an instruction.
+     *
+     * @return the registers known afterwards
+     */
+    private static int transfer(Insn insn, int known, int[] constants) {
+        switch (insn.opcode) {
+            case MOV:
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+                if (insn.kinds[0] != Instruction.REGISTER || insn.values[0] >= GENERAL_REGISTERS) {
+                    return known;
+                }
+
+                int r = insn.values[0];
+                Integer value = constant(insn, 1, known, constants);
+                if (insn.opcode != Opcode.MOV) {
+                    value = (known & (1 << r)) == 0 || value == null ? null : fold(insn.opcode, constants[r], value);
+                }
+
+                if (value == null) {
+                    return known & ~(1 << r);
+                }
+
+                constants[r] = value;
+                return known | (1 << r);
+            case INC:
+            case DEC:
+            case LOOP:
+                int counter = insn.opcode == Opcode.LOOP ? insn.values[1] : insn.values[0];
+                if (counter >= GENERAL_REGISTERS || (known & (1 << counter)) == 0) {
+                    return known & ~writes(insn);
+                }
+
+                constants[counter] += insn.opcode == Opcode.INC ? 1 : -1;
+                return known;
+            case CALL:
+            case INT:
+                // The callee or handler may change any register
+                return 0;
+            default:
+                return known & ~writes(insn);
+        }
+    }
+
+    /**
+     * @return the instruction to use instead, the same instruction, or null
+     * to remove it
+     */
+    private static Insn rewrite(Insn insn, int known, int[] constants) {
+        int dest = insn.kinds.length > 0 && insn.kinds[0] == Instruction.REGISTER ? insn.values[0] : -1;
+        Integer operand = insn.kinds.length > 1 ? constant(insn, 1, known, constants) : null;
+        switch (insn.opcode) {
+            case MOV:
+                if (dest == Register.SLOT_IP) {
+                    break;
+                }
+
+                if (insn.kinds[1] == Instruction.REGISTER && insn.values[1] == dest) {
+                    return null;
+                }
+
+                if (dest >= 0 && dest < GENERAL_REGISTERS && operand != null
+                        && (known & (1 << dest)) != 0 && constants[dest] == operand) {
+                    return null;
+                }
+                break;
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+                if (dest < 0 || dest == Register.SLOT_IP || operand == null) {
+                    break;
+                }
+
+                boolean identity = insn.opcode == Opcode.ADD || insn.opcode == Opcode.SUB ? operand == 0 : operand == 1;
+                if (identity) {
+                    return null;
+                }
+
+                if (dest < GENERAL_REGISTERS && (known & (1 << dest)) != 0) {
+                    Integer result = fold(insn.opcode, constants[dest], operand);
+                    if (result != null) {
+                        return new Insn(Opcode.MOV, new int[]{Instruction.REGISTER, Instruction.CONSTANT},
+                                new int[]{dest, result}, new String[2]);
+                    }
+                }
+                break;
+            case JEZ:
+            case JNZ:
+            case JLZ:
+            case JGZ:
+                if (insn.target == null || operand == null) {
+                    break;
+                }
+
+                return taken(insn.opcode, operand) ? jump(insn.target) : null;
+            case JEQ:
+            case JNE:
+            case JLT:
+            case JGE:
+            case JGT:
+            case JLE:
+                if (insn.target == null) {
+                    break;
+                }
+
+                // A register compared with itself needs no known value
+                boolean same = insn.kinds[1] == Instruction.REGISTER && insn.kinds[2] == Instruction.REGISTER
+                        && insn.values[1] == insn.values[2];
+                Integer second = constant(insn, 2, known, constants);
+                if (same) {
+                    return compare(insn.opcode, 0, 0) ? jump(insn.target) : null;
+                } else if (operand != null && second != null) {
+                    return compare(insn.opcode, operand, second) ? jump(insn.target) : null;
+                }
+                break;
+            case LOOP:
+                // The last iteration only decrements
+                int counter = insn.values[1];
+                if (counter < GENERAL_REGISTERS && (known & (1 << counter)) != 0 && constants[counter] == 1) {
+                    return new Insn(Opcode.DEC, new int[]{Instruction.REGISTER}, new int[]{counter}, new String[1]);
+                }
+                break;
+            default:
+                break;
+        }
+
+        return insn;
+    }
+
+    private static Insn jump(Block target) {
+        Insn jump = new Insn(Opcode.JMP, new int[]{Instruction.CONSTANT}, new int[]{0}, new String[1]);
+        jump.target = target;
+        return jump;
+    }
+
+    /**
+     * Drops register writes that are overwritten before they are read.
+     */
+    private boolean eliminateDeadStores() {
+        boolean changed = false;
+        for (Block block : blocks) {
+            // Everything may be read after the block
+            int live = ALL;
+            for (int i = block.insns.size() - 1; i >= 0; i--) {
+                Insn insn = block.insns.get(i);
+                int written = writes(insn) & ALL;
+                if (written != 0 && (written & live) == 0 && isPure(insn)) {
+                    block.insns.remove(i);
+                    changed = true;
+                    continue;
+                }
+
+                live = (live & ~overwrites(insn)) | reads(insn);
+            }
+        }
+
+        return changed;
+    }
+
+    private boolean threadJumps() {
+        boolean changed = false;
+        for (Block block : blocks) {
+            for (int i = 0; i < block.insns.size(); i++) {
+                Insn insn = block.insns.get(i);
+                if (insn.target == null) {
+                    continue;
+                }
+
+                Block target = insn.target;
+                Set<Block> seen = new HashSet<>();
+                while (seen.add(target)) {
+                    Insn first = first(target);
+                    if (first == null || first.opcode != Opcode.JMP || first.target == null) {
+                        break;
+                    }
+
+                    target = first.target;
+                }
+
+                Insn first = first(target);
+                if (insn.opcode == Opcode.JMP && first != null && (first.opcode == Opcode.RET || first.opcode == Opcode.HLT)) {
+                    block.insns.set(i, new Insn(first.opcode, new int[0], new int[0], new String[0]));
+                    changed = true;
+                } else if (target != insn.target) {
+                    insn.target = target;
+                    changed = true;
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    private boolean removeUnreachable() {
+        boolean changed = blocks.removeIf(block -> !block.reachable);
+        if (changed) {
+            for (Block block : blocks) {
+                block.root |= block == blocks.get(0);
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Reorders the blocks by the profile. The last block, holding the labels
+     * at the end of the code, stays last.
+     */
+    private void layout() {
+        Block end = blocks.get(blocks.size() - 1);
+        List<Edge> edges = new ArrayList<>();
+        for (int b = 0; b < blocks.size(); b++) {
+            Block block = blocks.get(b);
+            block.chain = new ArrayList<>();
+            block.chain.add(block);
+            Insn last = block.insns.isEmpty() ? null : block.insns.get(block.insns.size() - 1);
+            block.fallthrough = block != end && (last == null || fallsThrough(last)) ? blocks.get(b + 1) : null;
+            block.count = count(block);
+
+            // A conditional jump's target can only follow it if the jump can be
+            // inverted. Loops keep their jump back, as it cannot be saved: a
+            // header moved after it would need a jump from the block before
+            if (last != null && last.target != null && (last.opcode == Opcode.JMP || inverse(last.opcode) != null)
+                    && last.target.start > block.start) {
+                long taken = last.opcode == Opcode.JMP ? profile.executed(last.address) : profile.taken(last.address);
+                edges.add(new Edge(block, last.target, taken, false));
+            }
+
+            if (block.fallthrough != null) {
+                boolean returns = last != null && (last.opcode == Opcode.CALL || last.opcode == Opcode.INT || last.opcode == Opcode.BRK);
+                long weight = last != null && last.target != null ? profile.notTaken(last.address) : block.count;
+                edges.add(new Edge(block, block.fallthrough, weight, returns));
+            }
+        }
+
+        // Heaviest first; the sort is stable, so ties keep the original order
+        edges.sort(Comparator.comparing((Edge edge) -> !edge.required).thenComparing(edge -> -edge.weight));
+        for (Edge edge : edges) {
+            List<Block> from = edge.from.chain;
+            List<Block> to = edge.to.chain;
+            if (from == to || edge.to == blocks.get(0) || edge.to == end || edge.from == end
+                    || from.get(from.size() - 1) != edge.from || to.get(0) != edge.to) {
+                continue;
+            }
+
+            from.addAll(to);
+            for (Block block : to) {
+                block.chain = from;
+            }
+        }
+
+        // The entry first, then the hottest chains
+        List<List<Block>> chains = new ArrayList<>();
+        for (Block block : blocks) {
+            if (block != end && block.chain.get(0) == block) {
+                chains.add(block.chain);
+            }
+        }
+
+        Block entry = blocks.get(0);
+        chains.sort(Comparator.comparing((List<Block> chain) -> chain.get(0) != entry).thenComparing(chain -> -heat(chain)));
+
+        List<Block> order = new ArrayList<>();
+        for (List<Block> chain : chains) {
+            order.addAll(chain);
+        }
+
+        order.add(end);
+        blocks.clear();
+        blocks.addAll(order);
+
+        // Reconnect fall-throughs that are no longer adjacent
+        for (int b = 0; b < blocks.size() - 1; b++) {
+            Block block = blocks.get(b);
+            Block next = blocks.get(b + 1);
+            if (block.fallthrough == null || block.fallthrough == next) {
+                continue;
+            }
+
+            Insn last = block.insns.isEmpty() ? null : block.insns.get(block.insns.size() - 1);
+            Opcode inverse = last == null || last.target == null ? null : inverse(last.opcode);
+            if (inverse != null && last.target == next) {
+                last.opcode = inverse;
+                last.target = block.fallthrough;
+                continue;
+            }
+
+            Insn jump = new Insn(Opcode.JMP, new int[]{Instruction.CONSTANT}, new int[]{0}, new String[1]);
+            jump.target = block.fallthrough;
+            block.insns.add(jump);
+        }
+    }
+
+    /**
+     * How often a block was entered.
+     */
+    private long count(Block block) {
+        for (Insn insn : block.insns) {
+            if (insn.address >= 0) {
+                return profile.executed(insn.address);
+            }
+        }
+
+        return profile.executed(block.start);
+    }
+
+    private static long heat(List<Block> chain) {
+        long heat = 0;
+        for (Block block : chain) {
+            heat = Math.max(heat, block.count);
+        }
+
+        return heat;
+    }
+
+    /**
+     * Returns the conditional jump taken exactly when the given one is not,
+     * or null if there is none.
+     */
+    private static Opcode inverse(Opcode opcode) {
+        switch (opcode) {
+            case JEZ:
+                return Opcode.JNZ;
+            case JNZ:
+                return Opcode.JEZ;
+            case JEQ:
+                return Opcode.JNE;
+            case JNE:
+                return Opcode.JEQ;
+            case JLT:
+                return Opcode.JGE;
+            case JGE:
+                return Opcode.JLT;
+            case JGT:
+                return Opcode.JLE;
+            case JLE:
+                return Opcode.JGT;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Drops jumps whose target is where execution would continue anyway.
+     */
+    private boolean removeJumpsToNext() {
+        boolean changed = false;
+        for (int b = 0; b < blocks.size(); b++) {
+            Block block = blocks.get(b);
+            if (block.insns.isEmpty()) {
+                continue;
+            }
+
+            Insn last = block.insns.get(block.insns.size() - 1);
+            // CALL pushes and LOOP decrements even when they go to the next instruction
+            if (last.target == null || last.opcode == Opcode.CALL || last.opcode == Opcode.LOOP) {
+                continue;
+            }
+
+            if (effective(last.target) == effective(b + 1 < blocks.size() ? blocks.get(b + 1) : null)) {
+                block.insns.remove(block.insns.size() - 1);
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Returns the first non-empty block from the given one on, or null.
+     */
+    private Block effective(Block block) {
+        if (block == null) {
+            return null;
+        }
+
+        for (int b = blocks.indexOf(block); b < blocks.size(); b++) {
+            if (!blocks.get(b).insns.isEmpty()) {
+                return blocks.get(b);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the instruction executed first on entering a block.
+     */
+    private Insn first(Block block) {
+        Block effective = effective(block);
+        return effective == null ? null : effective.insns.get(0);
+    }
+
+    private byte[] emit() {
+        int pos = 0;
+        for (Block block : blocks) {
+            block.address = pos;
+            for (Insn insn : block.insns) {
+                pos += length(insn);
+            }
+        }
+
+        byte[] out = new byte[pos];
+        pos = 0;
+        for (Block block : blocks) {
+            for (String label : block.labels) {
+                optimizedLabels.put(label, block.address);
+            }
+
+            for (Insn insn : block.insns) {
+                out[pos++] = insn.opcode.opcode;
+                if (insn.kinds.length == 0) {
+                    continue;
+                }
+
+                int flags = 0;
+                for (int i = 0; i < insn.kinds.length; i++) {
+                    flags |= insn.kinds[i] << (6 - i * 2);
+                }
+
+                out[pos++] = (byte) flags;
+                for (int i = 0; i < insn.kinds.length; i++) {
+                    if (!isWord(insn.kinds[i])) {
+                        out[pos++] = (byte) Register.slot(insn.values[i]).index;
+                        continue;
+                    }
+
+                    int value = insn.values[i];
+                    if (i == 0 && insn.target != null) {
+                        value = insn.target.address;
+                    } else if (insn.labels[i] != null) {
+                        value = blocksByLabel.get(insn.labels[i]).address;
+                    }
+
+                    out[pos] = (byte) (value >>> 24);
+                    out[pos + 1] = (byte) (value >>> 16);
+                    out[pos + 2] = (byte) (value >>> 8);
+                    out[pos + 3] = (byte) value;
+                    pos += 4;
+                }
+            }
+        }
+
+        return out;
+    }
+
+    private static int length(Insn insn) {
+        int length = insn.kinds.length > 0 ? 2 : 1;
+        for (int kind : insn.kinds) {
+            length += isWord(kind) ? 4 : 1;
+        }
+
+        return length;
+    }
+
+    /**
+     * Returns the value of an operand if it is known.
+     */
+    private static Integer constant(Insn insn, int index, int known, int[] constants) {
+        int value = insn.values[index];
+        switch (insn.kinds[index]) {
+            case Instruction.CONSTANT:
+                // Label addresses change with the layout
+                return insn.labels[index] == null ? value : null;
+            case Instruction.REGISTER:
+                return value < GENERAL_REGISTERS && (known & (1 << value)) != 0 ? constants[value] : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Computes an arithmetic instruction as the CPU does.
+     *
+     * @return the result, or null for a division by zero
+     */
+    private static Integer fold(Opcode opcode, int a, int b) {
+        switch (opcode) {
+            case ADD:
+                return a + b;
+            case SUB:
+                return a - b;
+            case MUL:
+                return a * b;
+            case DIV:
+                return b == 0 ? null : a / b;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean taken(Opcode opcode, int test) {
+        switch (opcode) {
+            case JEZ:
+                return test == 0;
+            case JNZ:
+                return test != 0;
+            case JLZ:
+                return test < 0;
+            default:
+                return test > 0;
+        }
+    }
+
+    private static boolean compare(Opcode opcode, int a, int b) {
+        switch (opcode) {
+            case JEQ:
+                return a == b;
+            case JNE:
+                return a != b;
+            case JLT:
+                return a < b;
+            case JGE:
+                return a >= b;
+            case JGT:
+                return a > b;
+            default:
+                return a <= b;
+        }
+    }
+
+    /**
+     * Whether removing the instruction only loses its register write.
+     */
+    private static boolean isPure(Insn insn) {
+        if (insn.kinds.length == 0 || insn.kinds[0] != Instruction.REGISTER || insn.values[0] >= GENERAL_REGISTERS) {
+            return false;
+        }
+
+        switch (insn.opcode) {
+            case MOV:
+            case ADD:
+            case SUB:
+            case MUL:
+            case INC:
+            case DEC:
+                return true;
+            case DIV:
+                // Division by zero faults
+                return insn.kinds[1] == Instruction.CONSTANT && insn.labels[1] == null && insn.values[1] != 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The registers an instruction may write, as a mask of slots.
+     */
+    private static int writes(Insn insn) {
+        switch (insn.opcode) {
+            case MOV:
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case INC:
+            case DEC:
+            case POP:
+            case LOAD:
+            case MEMCMP:
+            case VSUM:
+            case VDOT:
+                return insn.kinds[0] == Instruction.REGISTER ? 1 << insn.values[0] : 0;
+            case CAS:
+            case XADD:
+            case LOOP:
+                return 1 << insn.values[1];
+            case HWID:
+                return 1 << Register.SLOT_EAX;
+            case APOP:
+            case CALL:
+            case INT:
+                return ALL;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * The registers an instruction writes without reading them first.
+     */
+    private static int overwrites(Insn insn) {
+        switch (insn.opcode) {
+            case HWID:
+                return 1 << Register.SLOT_EAX;
+            case APOP:
+                return ALL;
+            default:
+                return isWriteOnly(insn, 0) ? 1 << insn.values[0] : 0;
+        }
+    }
+
+    /**
+     * The registers an instruction may read, as a mask of slots. Control
+     * transfers count as reading every register.
+     */
+    private static int reads(Insn insn) {
+        int mask = 0;
+        for (int i = 0; i < insn.kinds.length; i++) {
+            if (insn.kinds[i] == Instruction.INDIRECT || (insn.kinds[i] == Instruction.REGISTER && !isWriteOnly(insn, i))) {
+                mask |= 1 << insn.values[i];
+            }
+        }
+
+        if (insn.opcode == Opcode.APUSH || endsBlock(insn)) {
+            mask |= ALL;
+        }
+
+        return mask;
+    }
+
+    private static boolean isWriteOnly(Insn insn, int index) {
+        if (index != 0 || insn.kinds.length == 0 || insn.kinds[0] != Instruction.REGISTER) {
+            return false;
+        }
+
+        switch (insn.opcode) {
+            case MOV:
+            case POP:
+            case LOAD:
+            case MEMCMP:
+            case VSUM:
+            case VDOT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean readsIp(Insn insn) {
+        for (int i = 0; i < insn.kinds.length; i++) {
+            if (insn.values[i] == Register.SLOT_IP && (insn.kinds[i] == Instruction.INDIRECT
+                    || (insn.kinds[i] == Instruction.REGISTER && !isWriteOnly(insn, i)))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isJump(Opcode opcode) {
+        switch (opcode) {
+            case JMP:
+            case JEZ:
+            case JNZ:
+            case JLZ:
+            case JGZ:
+            case JEQ:
+            case JNE:
+            case JLT:
+            case JGE:
+            case JGT:
+            case JLE:
+            case LOOP:
+            case CALL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isDirect(Insn insn) {
+        return isJump(insn.opcode) && insn.kinds[0] == Instruction.CONSTANT && insn.labels[0] != null;
+    }
+
+    private static boolean endsBlock(Insn insn) {
+        switch (insn.opcode) {
+            case JMP:
+            case JEZ:
+            case JNZ:
+            case JLZ:
+            case JGZ:
+            case JEQ:
+            case JNE:
+            case JLT:
+            case JGE:
+            case JGT:
+            case JLE:
+            case LOOP:
+            case CALL:
+            case RET:
+            case IRET:
+            case INT:
+            case BRK:
+            case HLT:
+                return true;
+            default:
+                return (writes(insn) & (1 << Register.SLOT_IP)) != 0;
+        }
+    }
+
+    private static boolean fallsThrough(Insn insn) {
+        switch (insn.opcode) {
+            case JMP:
+            case RET:
+            case IRET:
+            case HLT:
+                return false;
+            default:
+                return (writes(insn) & (1 << Register.SLOT_IP)) == 0;
+        }
+    }
+
+    private static boolean isWord(int kind) {
+        return kind == Instruction.CONSTANT || kind == Instruction.MEMORY_VALUE;
+    }
+}
@@ -0,0 +1,292 @@
+package codes.devin.vcpu.checkpoint;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.Memory;
+import codes.devin.vcpu.interrupt.InterruptController;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes incremental binary checkpoints of a CPU to a file.
+ *
+ * The file is a sequence of records. The first record holds every allocated
+ * page; each later record holds only the pages written since the record
+ * before it. A record is laid out as:
+ *
+ * <pre>
+ * int    magic ("VCPC")
+ * int    version
+ * int    flags (bit 0: full image)
+ * int    page count n
+ * int[]  ip, sp, stackTop, stackLimit, eax, ebx, ecx, edx, coreId, halted
+ * int[]  interrupt controller state (see {@link InterruptController#save()})
+ * int[n] page indices
+ *        zero padding up to the next page boundary
+ * n pages of data
+ * </pre>
+ *
+ * Records are page-aligned. A record cut short by a crash is ignored on
+ * restore. Version 1 records have no interrupt controller state; a CPU
+ * restored from one starts with the controller reset.
+ *
+ * Records are only appended, so once the file has grown past the compaction
+ * size the next checkpoint writes a full image to a new file instead, which
+ * then atomically replaces the old one.
+ */
+public class Checkpointer implements AutoCloseable {
+
+    public static final int MAGIC = 0x56435043;
+    public static final int VERSION = 2;
+    public static final long DEFAULT_COMPACT_SIZE = 256L << 20;
+
+    private static final int FLAG_FULL = 1;
+    private static final int REGISTERS = 10;
+    private static final int HEADER_SIZE = 4 * 4 + (REGISTERS + InterruptController.STATE_INTS) * 4;
+    private static final int V1_HEADER_SIZE = 4 * 4 + REGISTERS * 4;
+
+    private final CPU cpu;
+    private final Path file;
+    private final long compactSize;
+    private final ExecutorService writer;
+    // Only used by the writer thread
+    private FileChannel channel;
+    private long position;
+    private boolean written;
+    private boolean compact;
+
+    public Checkpointer(CPU cpu, Path file) throws IOException {
+        this(cpu, file, DEFAULT_COMPACT_SIZE);
+    }
+
+    /**
+     * @param compactSize the file size after which the next checkpoint
+     * starts a new file with a full image
+     */
+    public Checkpointer(CPU cpu, Path file, long compactSize) throws IOException {
+        this.cpu = cpu;
+        this.file = file;
+        this.compactSize = compactSize;
+        this.channel = open(file);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "vcpu-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Captures the CPU state and writes it in the background. Capturing costs
+     * a copy-on-write fork of memory; the CPU can keep running while the
+     * record is written.
+     *
+     * Must be called from the thread running the CPU, or while it is paused.
+     */
+    public CompletableFuture<Void> checkpoint() {
+        int[] dirty = cpu.memory.clearDirty();
+        Memory snapshot = cpu.memory.fork();
+        int[] registers = registers(cpu);
+
+        return CompletableFuture.runAsync(() -> {
+            // Decided here rather than at capture, so that a failure of the
+            // record before this one is seen
+            boolean rotate = written && compact;
+            boolean full = !written || rotate;
+            written = true;
+            compact = false;
+            int[] pages = full ? snapshot.allocatedPages() : dirty;
+            try {
+                if (rotate) {
+                    rotate(full, registers, pages, snapshot);
+                } else {
+                    write(full, registers, pages, snapshot);
+                }
+            } catch (IOException ex) {
+                // The pages dirtied since the last record are in no record, and
+                // records appended to a rotated file would never replace the old
+                // one; either way the next checkpoint must start a new file
+                compact = true;
+                throw new UncheckedIOException(ex);
+            }
+        }, writer);
+    }
+
+    /**
+     * Writes a record to a new file, then replaces the old file with it.
+     * Until then the old file still holds a complete checkpoint.
+     */
+    private void rotate(boolean full, int[] registers, int[] pages, Memory snapshot) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileChannel old = channel;
+        channel = open(temp);
+        position = 0;
+        try {
+            write(full, registers, pages, snapshot);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            old.close();
+        }
+    }
+
+    private void write(boolean full, int[] registers, int[] pages, Memory snapshot) throws IOException {
+        int headerLength = (int) align(HEADER_SIZE + pages.length * 4);
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        header.putInt(MAGIC).putInt(VERSION).putInt(full ? FLAG_FULL : 0).putInt(pages.length);
+        for (int register : registers) {
+            header.putInt(register);
+        }
+
+        for (int index : pages) {
+            header.putInt(index);
+        }
+
+        header.clear();
+        long offset = position;
+        writeFully(header, offset);
+        offset += headerLength;
+
+        byte[] data = new byte[Memory.PAGE_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        for (int index : pages) {
+            snapshot.read(index << Memory.PAGE_SHIFT, data, 0, data.length);
+            buffer.clear();
+            writeFully(buffer, offset);
+            offset += Memory.PAGE_SIZE;
+        }
+
+        channel.force(false);
+        position = offset;
+        compact = position >= compactSize;
+    }
+
+    private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            while (!writer.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Wait for pending checkpoints
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Restores the state saved by the last complete record in the file.
+     */
+    public static CPU restore(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int[] registers = null;
+            Memory memory = new Memory();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            byte[] data = new byte[Memory.PAGE_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+
+            long position = 0;
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, position);
+                int version = header.getInt(4);
+                int count = header.getInt(12);
+                if (header.getInt(0) != MAGIC || (version != 1 && version != VERSION) || count < 0) {
+                    throw new IOException("corrupt checkpoint at offset " + position);
+                }
+
+                // Page-aligned, so a complete record's header is never shorter than HEADER_SIZE
+                int headerSize = version == 1 ? V1_HEADER_SIZE : HEADER_SIZE;
+                long headerLength = align(headerSize + count * 4L);
+                if (position + headerLength + (long) count * Memory.PAGE_SIZE > size) {
+                    // Torn record
+                    break;
+                }
+
+                int[] recordRegisters = new int[(headerSize - 16) / 4];
+                for (int i = 0; i < recordRegisters.length; i++) {
+                    recordRegisters[i] = header.getInt(16 + i * 4);
+                }
+
+                ByteBuffer indices = ByteBuffer.allocate(count * 4);
+                readFully(channel, indices, position + headerSize);
+
+                long dataOffset = position + headerLength;
+                for (int i = 0; i < count; i++) {
+                    buffer.clear();
+                    readFully(channel, buffer, dataOffset + (long) i * Memory.PAGE_SIZE);
+                    memory.write(indices.getInt(i * 4) << Memory.PAGE_SHIFT, data, 0, data.length);
+                }
+
+                registers = recordRegisters;
+                position = dataOffset + (long) count * Memory.PAGE_SIZE;
+            }
+
+            if (registers == null) {
+                throw new IOException("no complete checkpoint in " + file);
+            }
+
+            CPU cpu = new CPU(memory, registers[8]);
+            cpu.ip = registers[0];
+            cpu.sp = registers[1];
+            cpu.stackTop = registers[2];
+            cpu.stackLimit = registers[3];
+            cpu.eax = registers[4];
+            cpu.ebx = registers[5];
+            cpu.ecx = registers[6];
+            cpu.edx = registers[7];
+            cpu.halted = registers[9] != 0;
+            if (registers.length > REGISTERS) {
+                cpu.interrupts.load(Arrays.copyOfRange(registers, REGISTERS, registers.length));
+            }
+
+            return cpu;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+
+            offset += read;
+        }
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static int[] registers(CPU cpu) {
+        int[] registers = Arrays.copyOf(new int[]{
+            cpu.ip, cpu.sp, cpu.stackTop, cpu.stackLimit, cpu.eax, cpu.ebx, cpu.ecx, cpu.edx,
+            cpu.coreId, cpu.halted ? 1 : 0
+        }, REGISTERS + InterruptController.STATE_INTS);
+        System.arraycopy(cpu.interrupts.save(), 0, registers, REGISTERS, InterruptController.STATE_INTS);
+        return registers;
+    }
+
+    private static long align(long length) {
+        return (length + Memory.PAGE_MASK) & ~Memory.PAGE_MASK;
+    }
+}
@@ -0,0 +1,82 @@
+package codes.devin.vcpu.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Sends a command to a running {@link Daemon} and relays its output. Takes
+ * the same arguments as {@link codes.devin.vcpu.Main}; the daemon's socket
+ * is $VCPU_SOCKET or the default per-user socket.
+ */
+public class Client {
+
+    public static void main(String[] args) throws IOException {
+        Path socket = Protocol.defaultSocket();
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(socket));
+        } catch (IOException ex) {
+            System.err.println("No vcpu daemon is listening on " + socket + "; start one with --daemon.");
+            System.exit(3);
+            return;
+        }
+
+        int status;
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(Protocol.MAGIC);
+            out.writeUTF(Paths.get("").toAbsolutePath().toString());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+
+            out.flush();
+            status = relay(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel))));
+        }
+
+        System.out.flush();
+        System.exit(status);
+    }
+
+    /**
+     * Copies output frames to stdout and stderr.
+     *
+     * @return the exit status
+     */
+    private static int relay(DataInputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException ex) {
+                System.err.println("The vcpu daemon closed the connection.");
+                return 3;
+            }
+
+            if (type == Protocol.EXIT) {
+                return in.readInt();
+            }
+
+            int length = in.readInt();
+            if (length > buffer.length) {
+                buffer = new byte[length];
+            }
+
+            in.readFully(buffer, 0, length);
+            (type == Protocol.STDERR ? System.err : System.out).write(buffer, 0, length);
+        }
+    }
+}
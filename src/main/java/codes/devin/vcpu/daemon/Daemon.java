@@ -0,0 +1,161 @@
+package codes.devin.vcpu.daemon;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.Main;
+import codes.devin.vcpu.asm.Assembler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@link Main} commands to {@link Client}s over a Unix domain socket,
+ * so that repeated commands run in one warm JVM instead of starting a new
+ * one each time.
+ *
+ * Each connection carries one command. Commands run concurrently on a fixed
+ * pool of threads; their output is streamed back as it is produced,
+ * followed by the exit status. Commands see an empty standard input.
+ */
+public class Daemon implements AutoCloseable {
+
+    private static final String WARM_UP = String.join("\n",
+            "mov ecx 200000",
+            ":loop",
+            "push ecx",
+            "pop eax",
+            "add eax 3",
+            "sub ecx 1",
+            "jnz loop ecx",
+            "hlt");
+
+    private final Path socket;
+    private final ServerSocketChannel server;
+    private final ExecutorService workers;
+
+    public Daemon(Path socket, int parallelism) throws IOException {
+        this.socket = socket;
+        Files.deleteIfExists(socket);
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        this.workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "vcpu-daemon-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Accepts connections until the daemon is closed.
+     */
+    public void serve() throws IOException {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException ex) {
+                return;
+            }
+
+            workers.execute(() -> handle(channel));
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            if (in.readInt() != Protocol.MAGIC) {
+                return;
+            }
+
+            Path dir = Paths.get(in.readUTF());
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+
+            DataOutputStream frames = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            PrintStream out = new PrintStream(new BufferedOutputStream(new Protocol.FrameOutputStream(frames, Protocol.STDOUT)));
+            PrintStream err = new PrintStream(new BufferedOutputStream(new Protocol.FrameOutputStream(frames, Protocol.STDERR)));
+
+            int status;
+            try {
+                status = Main.execute(args, dir, InputStream.nullInputStream(), out, err);
+            } catch (Exception ex) {
+                ex.printStackTrace(err);
+                status = 1;
+            }
+
+            out.flush();
+            err.flush();
+            synchronized (frames) {
+                frames.writeByte(Protocol.EXIT);
+                frames.writeInt(status);
+                frames.flush();
+            }
+        } catch (IOException ex) {
+            // The client went away
+        }
+    }
+
+    /**
+     * Runs some guest code so that the interpreter is compiled before the
+     * first client arrives.
+     */
+    public void warmUp() {
+        try {
+            byte[] program = new Assembler(WARM_UP).assemble();
+            for (int i = 0; i < 20; i++) {
+                CPU cpu = new CPU(program);
+                while (!cpu.halted) {
+                    cpu.cycle();
+                }
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException("warm-up failed", ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            server.close();
+        } finally {
+            workers.shutdown();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    /**
+     * Starts a daemon on the given socket, or on the default one.
+     */
+    public static void main(String[] args) throws IOException {
+        Path socket = args.length > 0 ? Paths.get(args[0]) : Protocol.defaultSocket();
+        Daemon daemon = new Daemon(socket, Runtime.getRuntime().availableProcessors());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+            } catch (IOException ex) {
+                // Exiting anyway
+            }
+        }));
+
+        daemon.warmUp();
+        System.out.println("Listening on " + socket);
+        daemon.serve();
+    }
+}
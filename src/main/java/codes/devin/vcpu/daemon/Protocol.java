@@ -0,0 +1,79 @@
+package codes.devin.vcpu.daemon;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Wire format shared by {@link Daemon} and {@link Client}.
+ *
+ * The client sends its working directory and the command's arguments, as
+ * modified UTF-8 strings preceded by the argument count. The daemon answers
+ * with frames: a type byte, then for output frames the length and bytes,
+ * and for the final {@link #EXIT} frame the exit status.
+ */
+final class Protocol {
+
+    static final int MAGIC = 0x5643504A; // "VCPJ"
+
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte EXIT = 3;
+
+    private Protocol() {
+    }
+
+    /**
+     * The socket used when none is given: $VCPU_SOCKET, or a per-user
+     * socket in the temporary directory.
+     */
+    static Path defaultSocket() {
+        String path = System.getenv("VCPU_SOCKET");
+        if (path != null && !path.isEmpty()) {
+            return Paths.get(path);
+        }
+
+        return Paths.get(System.getProperty("java.io.tmpdir"), "vcpu-" + System.getProperty("user.name") + ".sock");
+    }
+
+    /**
+     * Sends everything written to it as frames of one type.
+     */
+    static final class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final byte type;
+
+        FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package codes.devin.vcpu.debug;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.dump.HexEncoder;
+import codes.devin.vcpu.interrupt.Interrupt;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A line-oriented console for a {@link Debugger}. Addresses may be given as
+ * numbers or as label names, and are shown relative to the nearest label.
+ */
+public class DebugConsole {
+
+    private static final String HELP = String.join("\n",
+            "break <where>          set a breakpoint",
+            "delete <where>         remove a breakpoint",
+            "watch <where> [len]    stop when len bytes (default 4) change",
+            "unwatch <where>        remove a watchpoint",
+            "info                   list breakpoints and watchpoints",
+            "step [n]               execute n instructions (default 1)",
+            "continue               run until a breakpoint, watchpoint or halt",
+            "regs                   show the registers",
+            "x <where> [len]        show len bytes of memory (default 64)",
+            "quit                   stop debugging",
+            "<where> is a label, label+offset or a number.");
+
+    private final Debugger debugger;
+    private final CPU cpu;
+    private final Map<String, Integer> labels;
+    private final TreeMap<Integer, String> names = new TreeMap<>(Integer::compareUnsigned);
+    private final BufferedReader in;
+    private final PrintStream out;
+
+    public DebugConsole(Debugger debugger, CPU cpu, Map<String, Integer> labels, BufferedReader in, PrintStream out) {
+        this.debugger = debugger;
+        this.cpu = cpu;
+        this.labels = labels;
+        this.in = in;
+        this.out = out;
+        for (Map.Entry<String, Integer> label : labels.entrySet()) {
+            names.putIfAbsent(label.getValue(), label.getKey());
+        }
+    }
+
+    /**
+     * Reads and runs commands until "quit" or the end of the input.
+     */
+    public void run() throws IOException {
+        out.println("Stopped at " + location(cpu.ip) + ". Type help for a list of commands.");
+        while (true) {
+            out.print("(vcpu) ");
+            out.flush();
+            String line = in.readLine();
+            if (line == null) {
+                return;
+            }
+
+            String[] words = line.trim().split("\\s+");
+            if (words[0].isEmpty()) {
+                continue;
+            }
+
+            try {
+                if (!execute(words)) {
+                    return;
+                }
+            } catch (IllegalArgumentException ex) {
+                out.println(ex.getMessage());
+            } catch (Interrupt ex) {
+                out.println("CPU fault at " + location(cpu.ip) + ": " + ex.getMessage());
+                cpu.halt();
+            }
+        }
+    }
+
+    /**
+     * @return false to quit
+     */
+    private boolean execute(String[] words) {
+        switch (words[0]) {
+            case "b":
+            case "break":
+                int breakpoint = address(argument(words, 1));
+                debugger.addBreakpoint(breakpoint);
+                out.println("Breakpoint at " + location(breakpoint));
+                break;
+            case "d":
+            case "delete":
+                if (!debugger.removeBreakpoint(address(argument(words, 1)))) {
+                    out.println("No breakpoint there");
+                }
+                break;
+            case "w":
+            case "watch":
+                int watchpoint = address(argument(words, 1));
+                debugger.addWatchpoint(watchpoint, words.length > 2 ? number(words[2]) : 4);
+                out.println("Watchpoint at " + location(watchpoint));
+                break;
+            case "unwatch":
+                if (!debugger.removeWatchpoint(address(argument(words, 1)))) {
+                    out.println("No watchpoint there");
+                }
+                break;
+            case "i":
+            case "info":
+                for (int address : debugger.breakpoints()) {
+                    out.println("breakpoint " + location(address));
+                }
+
+                for (Debugger.Watchpoint w : debugger.watchpoints()) {
+                    out.println("watchpoint " + location(w.address) + ", " + w.length + " bytes");
+                }
+                break;
+            case "s":
+            case "step":
+                int count = words.length > 1 ? number(words[1]) : 1;
+                Debugger.Stop stop = Debugger.Stop.STEP;
+                for (int i = 0; i < count && stop == Debugger.Stop.STEP; i++) {
+                    stop = debugger.step();
+                }
+
+                report(stop);
+                break;
+            case "c":
+            case "continue":
+                report(debugger.resume());
+                break;
+            case "r":
+            case "regs":
+                out.println(cpu.dumpRegisters());
+                break;
+            case "x":
+                int start = address(argument(words, 1));
+                int length = words.length > 2 ? number(words[2]) : 64;
+                examine(start, length);
+                break;
+            case "q":
+            case "quit":
+                return false;
+            case "h":
+            case "help":
+                out.println(HELP);
+                break;
+            default:
+                out.println("Unknown command: " + words[0] + ". Type help for a list of commands.");
+                break;
+        }
+
+        return true;
+    }
+
+    private void report(Debugger.Stop stop) {
+        switch (stop) {
+            case BREAKPOINT:
+                out.println("Breakpoint at " + location(cpu.ip));
+                break;
+            case TRAP:
+                out.println("BRK instruction at " + location(cpu.ip - 1));
+                break;
+            case WATCHPOINT:
+                Debugger.Watchpoint w = debugger.hit();
+                out.println("Watchpoint " + location(w.address) + " changed to " + hex(debugger.read(w.address, w.length))
+                        + " before " + location(cpu.ip));
+                break;
+            case HALTED:
+                out.println("CPU halted at " + location(cpu.ip));
+                return;
+            default:
+                out.println("At " + location(cpu.ip));
+                break;
+        }
+    }
+
+    private void examine(int start, int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Length must be positive");
+        }
+
+        // Whole lines, so that columns line up with addresses
+        int first = start & -HexEncoder.LINE_BYTES;
+        int lines = (int) ((Integer.toUnsignedLong(start) + length - Integer.toUnsignedLong(first) + HexEncoder.LINE_BYTES - 1) / HexEncoder.LINE_BYTES);
+        byte[] data = debugger.read(first, lines * HexEncoder.LINE_BYTES);
+        byte[] dst = new byte[lines * HexEncoder.LINE_LENGTH];
+        int pos = 0;
+        for (int i = 0; i < lines; i++) {
+            pos = HexEncoder.line(dst, pos, first + i * HexEncoder.LINE_BYTES, data, i * HexEncoder.LINE_BYTES);
+        }
+
+        out.print(new String(dst, 0, pos, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Formats an address as label+offset, if any label precedes it.
+     */
+    private String location(int address) {
+        String hex = String.format("0x%08X", address);
+        Map.Entry<Integer, String> label = names.floorEntry(address);
+        if (label == null) {
+            return hex;
+        }
+
+        int offset = address - label.getKey();
+        return (offset == 0 ? label.getValue() : label.getValue() + "+" + offset) + " (" + hex + ")";
+    }
+
+    private int address(String text) {
+        int plus = text.indexOf('+', 1);
+        String base = plus < 0 ? text : text.substring(0, plus);
+        int offset = plus < 0 ? 0 : number(text.substring(plus + 1));
+        Integer label = labels.get(base);
+        return (label != null ? label : number(base)) + offset;
+    }
+
+    private static int number(String text) {
+        try {
+            return Long.decode(text).intValue();
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Not a label or number: " + text);
+        }
+    }
+
+    private static String argument(String[] words, int index) {
+        if (words.length <= index) {
+            throw new IllegalArgumentException("Missing argument to " + words[0]);
+        }
+
+        return words[index];
+    }
+
+    private static String hex(byte[] data) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : data) {
+            sb.append(String.format("%02X", b & 0xFF));
+        }
+
+        return sb.toString();
+    }
+}
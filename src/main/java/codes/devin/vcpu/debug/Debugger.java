@@ -0,0 +1,272 @@
+package codes.devin.vcpu.debug;
+
+import codes.devin.vcpu.BreakpointListener;
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.Memory;
+import codes.devin.vcpu.Opcode;
+import codes.devin.vcpu.WatchListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Controls a CPU for debugging: runs it one instruction at a time or until
+ * it stops at a breakpoint or watchpoint.
+ *
+ * Breakpoints replace the first byte of an instruction with BRK, which the
+ * CPU reports to its {@link CPU#breakpointListener}; the original byte is
+ * put back while stepping over it. Watchpoints watch the pages they cover
+ * (see {@link Memory#watch(int)}) and stop the CPU after an instruction
+ * that changes their contents. Neither adds any work to instructions that
+ * do not hit them.
+ *
+ * Not thread-safe; the CPU must only run through this debugger while it is
+ * attached.
+ */
+public class Debugger implements BreakpointListener, WatchListener, AutoCloseable {
+
+    public enum Stop {
+        STEP,
+        BREAKPOINT,
+        /**
+         * A BRK instruction that is part of the program; execution resumes
+         * after it.
+         */
+        TRAP,
+        WATCHPOINT,
+        HALTED
+    }
+
+    public static final class Watchpoint {
+
+        public final int address;
+        public final int length;
+        byte[] contents;
+
+        Watchpoint(int address, int length, byte[] contents) {
+            this.address = address;
+            this.length = length;
+            this.contents = contents;
+        }
+    }
+
+    private static final byte BRK = Opcode.BRK.opcode;
+
+    private final CPU cpu;
+    private final Memory memory;
+
+    // Breakpoint address > the byte BRK replaced
+    private final Map<Integer, Byte> breakpoints = new TreeMap<>(Integer::compareUnsigned);
+    private final List<Watchpoint> watchpoints = new ArrayList<>();
+
+    private boolean trapped;
+    private volatile boolean watchedPageWritten;
+    private Watchpoint hit;
+
+    public Debugger(CPU cpu) {
+        this.cpu = cpu;
+        this.memory = cpu.memory;
+        cpu.breakpointListener = this;
+        memory.watchListener = this;
+    }
+
+    public void addBreakpoint(int address) {
+        if (breakpoints.containsKey(address)) {
+            return;
+        }
+
+        breakpoints.put(address, memory.read(address));
+        patch(address, BRK);
+    }
+
+    public boolean removeBreakpoint(int address) {
+        Byte original = breakpoints.remove(address);
+        if (original == null) {
+            return false;
+        }
+
+        patch(address, original);
+        return true;
+    }
+
+    public List<Integer> breakpoints() {
+        return new ArrayList<>(breakpoints.keySet());
+    }
+
+    /**
+     * Stops the CPU whenever the given range changes.
+     */
+    public void addWatchpoint(int address, int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("length must be positive");
+        }
+
+        watchpoints.add(new Watchpoint(address, length, read(address, length)));
+        for (long page = address >>> Memory.PAGE_SHIFT; page <= lastPage(address, length); page++) {
+            memory.watch((int) page);
+        }
+    }
+
+    public boolean removeWatchpoint(int address) {
+        for (int i = 0; i < watchpoints.size(); i++) {
+            Watchpoint watchpoint = watchpoints.get(i);
+            if (watchpoint.address == address) {
+                watchpoints.remove(i);
+                for (long page = address >>> Memory.PAGE_SHIFT; page <= lastPage(address, watchpoint.length); page++) {
+                    if (!isCovered((int) page)) {
+                        memory.unwatch((int) page);
+                    }
+                }
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public List<Watchpoint> watchpoints() {
+        return Collections.unmodifiableList(watchpoints);
+    }
+
+    /**
+     * The watchpoint that caused the last {@link Stop#WATCHPOINT}.
+     */
+    public Watchpoint hit() {
+        return hit;
+    }
+
+    /**
+     * Reads memory as the program sees it, without breakpoints.
+     */
+    public byte[] read(int address, int length) {
+        byte[] data = new byte[length];
+        memory.read(address, data, 0, length);
+        for (Map.Entry<Integer, Byte> breakpoint : breakpoints.entrySet()) {
+            int offset = breakpoint.getKey() - address;
+            if (Integer.compareUnsigned(offset, length) < 0) {
+                data[offset] = breakpoint.getValue();
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Executes one instruction, stepping over a breakpoint at ip.
+     */
+    public Stop step() {
+        if (cpu.halted) {
+            return Stop.HALTED;
+        }
+
+        int ip = cpu.ip;
+        Byte original = breakpoints.get(ip);
+        if (original == null) {
+            cpu.step();
+        } else {
+            patch(ip, original);
+            try {
+                cpu.step();
+            } finally {
+                if (breakpoints.containsKey(ip)) {
+                    patch(ip, BRK);
+                }
+            }
+        }
+
+        return stop();
+    }
+
+    /**
+     * Runs until the CPU halts or stops at a breakpoint or watchpoint.
+     */
+    public Stop resume() {
+        Stop stop = step();
+        while (stop == Stop.STEP) {
+            cpu.step();
+            stop = stop();
+        }
+
+        return stop;
+    }
+
+    @Override
+    public void breakpoint(CPU cpu) {
+        trapped = true;
+    }
+
+    @Override
+    public void pageWritten(int index) {
+        watchedPageWritten = true;
+    }
+
+    /**
+     * Removes all breakpoints and watchpoints and detaches from the CPU.
+     */
+    @Override
+    public void close() {
+        for (Integer address : breakpoints()) {
+            removeBreakpoint(address);
+        }
+
+        while (!watchpoints.isEmpty()) {
+            removeWatchpoint(watchpoints.get(0).address);
+        }
+
+        cpu.breakpointListener = null;
+        memory.watchListener = null;
+    }
+
+    private Stop stop() {
+        if (trapped) {
+            trapped = false;
+            if (breakpoints.containsKey(cpu.ip)) {
+                return Stop.BREAKPOINT;
+            }
+
+            cpu.ip++;
+            return Stop.TRAP;
+        }
+
+        if (watchedPageWritten) {
+            watchedPageWritten = false;
+            for (Watchpoint watchpoint : watchpoints) {
+                byte[] contents = read(watchpoint.address, watchpoint.length);
+                if (!Arrays.equals(contents, watchpoint.contents)) {
+                    watchpoint.contents = contents;
+                    hit = watchpoint;
+                    return Stop.WATCHPOINT;
+                }
+            }
+        }
+
+        return cpu.halted ? Stop.HALTED : Stop.STEP;
+    }
+
+    private void patch(int address, byte value) {
+        // Breakpoints must not trigger watchpoints
+        boolean written = watchedPageWritten;
+        memory.write(address, value);
+        watchedPageWritten = written;
+        cpu.invalidate(address, 1);
+    }
+
+    private boolean isCovered(int page) {
+        for (Watchpoint watchpoint : watchpoints) {
+            if (Integer.compareUnsigned(page, watchpoint.address >>> Memory.PAGE_SHIFT) >= 0
+                    && page <= lastPage(watchpoint.address, watchpoint.length)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static long lastPage(int address, int length) {
+        return Math.min((Integer.toUnsignedLong(address) + length - 1) >>> Memory.PAGE_SHIFT, (1L << (32 - Memory.PAGE_SHIFT)) - 1);
+    }
+}
@@ -0,0 +1,113 @@
+package codes.devin.vcpu.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Storage backed by a host file that is memory-mapped into the guest: byte
+ * n of the mapping is byte n of the file. Guest loads and stores go straight
+ * to the host page cache, and the operating system writes dirty pages back
+ * in the background; {@link #sync()} forces them out.
+ *
+ * Accesses past the end of the file read as zeros and are ignored.
+ */
+public class BlockDevice implements Device {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer data;
+    private final int size;
+
+    /**
+     * Maps an existing file.
+     */
+    public BlockDevice(Path file) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE), -1);
+    }
+
+    /**
+     * Maps a file, creating it or changing its length to the given size.
+     */
+    public BlockDevice(Path file, int size) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE), size);
+    }
+
+    private BlockDevice(FileChannel channel, int size) throws IOException {
+        try {
+            if (size >= 0) {
+                if (channel.size() > size) {
+                    channel.truncate(size);
+                } else if (channel.size() < size && size > 0) {
+                    // Extends the file without writing the rest of it
+                    channel.write(ByteBuffer.allocate(1), size - 1);
+                }
+            } else if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("block device files are limited to 2 GiB");
+            }
+
+            this.size = (int) channel.size();
+            this.data = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.size);
+            this.channel = channel;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * The size of the file, in bytes.
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public byte read(int offset) {
+        return Integer.compareUnsigned(offset, size) < 0 ? data.get(offset) : 0;
+    }
+
+    @Override
+    public void write(int offset, byte value) {
+        if (Integer.compareUnsigned(offset, size) < 0) {
+            data.put(offset, value);
+        }
+    }
+
+    @Override
+    public int readInt(int offset) {
+        if (offset >= 0 && offset <= size - 4) {
+            return data.getInt(offset);
+        }
+
+        return Device.super.readInt(offset);
+    }
+
+    @Override
+    public void writeInt(int offset, int value) {
+        if (offset >= 0 && offset <= size - 4) {
+            data.putInt(offset, value);
+            return;
+        }
+
+        Device.super.writeInt(offset, value);
+    }
+
+    /**
+     * Writes modified data back to the file.
+     */
+    public void sync() {
+        data.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+}
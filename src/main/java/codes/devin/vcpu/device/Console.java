@@ -0,0 +1,201 @@
+package codes.devin.vcpu.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A write-only console. Bytes stored at {@link #DATA} are buffered and
+ * written to a channel in batches by a background thread, so the guest only
+ * waits for host I/O when it outruns the channel by a whole buffer.
+ *
+ * A batch is written when the buffer fills, when the guest stores anything
+ * at {@link #FLUSH}, and otherwise at most {@link #FLUSH_INTERVAL_MILLIS}
+ * after its first byte. Reads return zero.
+ */
+public class Console implements Device {
+
+    /**
+     * Where {@link codes.devin.vcpu.Main} maps the console.
+     */
+    public static final int DEFAULT_ADDRESS = 0xFFFF0000;
+
+    public static final int SIZE = 8;
+    public static final int DATA = 0;
+    public static final int FLUSH = 4;
+
+    public static final int BUFFER_SIZE = 8192;
+    public static final long FLUSH_INTERVAL_MILLIS = 10;
+
+    private final WritableByteChannel out;
+    private final Thread writer;
+
+    // Guarded by this. The writer swaps the buffers; spare is null while it writes a batch
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private byte[] spare = new byte[BUFFER_SIZE];
+    private int count;
+    private long accepted;
+    private long written;
+    private boolean flushRequested;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * Creates a console writing to the given channel, which it does not
+     * close.
+     */
+    public Console(WritableByteChannel out) {
+        this.out = out;
+        this.writer = new Thread(this::drain, "vcpu-console");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public byte read(int offset) {
+        return 0;
+    }
+
+    @Override
+    public synchronized void write(int offset, byte value) {
+        if (offset == FLUSH) {
+            flushRequested = true;
+            notifyAll();
+            return;
+        }
+
+        if (offset != DATA || closed) {
+            return;
+        }
+
+        boolean interrupted = false;
+        while (count == buffer.length && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure != null) {
+            // Output is lost, as on a disconnected terminal
+            return;
+        }
+
+        buffer[count++] = value;
+        accepted++;
+        if (count == 1 || count == buffer.length) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void writeInt(int offset, int value) {
+        // A word store writes its least significant byte, like MOV
+        write(offset, (byte) value);
+    }
+
+    /**
+     * Waits until everything written so far has been written to the
+     * channel.
+     */
+    public synchronized void flush() throws IOException {
+        long target = accepted;
+        flushRequested = true;
+        notifyAll();
+        while (written < target && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted", ex);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Flushes and stops the background thread.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            byte[] batch;
+            int length;
+            synchronized (this) {
+                try {
+                    while (count == 0 && !closed) {
+                        wait();
+                    }
+
+                    // Give the batch time to fill up, unless it is needed now
+                    long deadline = System.currentTimeMillis() + FLUSH_INTERVAL_MILLIS;
+                    long remaining;
+                    while (count < buffer.length && !flushRequested && !closed
+                            && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        wait(remaining);
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                if (count == 0) {
+                    // Closed with nothing left to write
+                    return;
+                }
+
+                batch = buffer;
+                length = count;
+                buffer = spare;
+                spare = null;
+                count = 0;
+                flushRequested = false;
+                notifyAll();
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer src = ByteBuffer.wrap(batch, 0, length);
+                while (src.hasRemaining()) {
+                    out.write(src);
+                }
+            } catch (IOException ex) {
+                error = ex;
+            }
+
+            synchronized (this) {
+                spare = batch;
+                written += length;
+                if (error != null && failure == null) {
+                    failure = error;
+                }
+
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package codes.devin.vcpu.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A device mapped into guest memory by a {@link codes.devin.vcpu.Bus}.
+ * Offsets are relative to the start of the mapping.
+ *
+ * Called on the threads running the CPUs that access it; a device shared by
+ * several cores must be thread-safe.
+ */
+public interface Device extends Closeable {
+
+    byte read(int offset);
+
+    void write(int offset, byte value);
+
+    /**
+     * Reads a 32-bit big-endian word.
+     */
+    default int readInt(int offset) {
+        return ((read(offset) & 0xFF) << 24) | ((read(offset + 1) & 0xFF) << 16)
+                | ((read(offset + 2) & 0xFF) << 8) | (read(offset + 3) & 0xFF);
+    }
+
+    /**
+     * Writes a 32-bit big-endian word.
+     */
+    default void writeInt(int offset, int value) {
+        write(offset, (byte) (value >> 24));
+        write(offset + 1, (byte) (value >> 16));
+        write(offset + 2, (byte) (value >> 8));
+        write(offset + 3, (byte) value);
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+}
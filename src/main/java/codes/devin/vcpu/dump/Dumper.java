@@ -0,0 +1,246 @@
+package codes.devin.vcpu.dump;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.HaltListener;
+import codes.devin.vcpu.Memory;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes register and memory dumps of halted CPUs without holding them up.
+ *
+ * At halt, only the registers are copied and the memory is forked, which
+ * shares its pages rather than copying them; encoding and writing happen on
+ * a background thread through a reusable buffer.
+ *
+ * A core file holds the {@link #CORE_MAGIC magic}, {@link #CORE_VERSION
+ * version}, the registers (ip, sp, stackTop, stackLimit, eax, ebx, ecx, edx,
+ * coreId, halted), the page count, then each page as its index followed by
+ * its contents. All ints are big-endian.
+ */
+public class Dumper implements HaltListener, AutoCloseable {
+
+    public enum Format {
+        /**
+         * The hex dump printed by earlier versions on halt.
+         */
+        TEXT,
+        CORE
+    }
+
+    public enum Regions {
+        ALL,
+        /**
+         * Skips all-zero lines (text) or pages (core).
+         */
+        NON_ZERO,
+        /**
+         * Only pages written since the memory's dirty pages were last
+         * cleared.
+         */
+        DIRTY
+    }
+
+    public static final int CORE_MAGIC = 0x56434F52; // "VCOR"
+    public static final int CORE_VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] HEADER = "CPU halted.\n\nRegister dump:\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MEMORY_HEADER = "\n\nMemory dump:\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final Format format;
+    private final Regions regions;
+    private final WritableByteChannel out;
+    private final Path directory;
+    private final ExecutorService writer;
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Only used by the writer thread
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] page = new byte[Memory.PAGE_SIZE];
+
+    /**
+     * Creates a dumper writing every dump to the given channel, which it
+     * does not close.
+     */
+    public Dumper(Format format, Regions regions, WritableByteChannel out) {
+        this(format, regions, out, null);
+    }
+
+    /**
+     * Creates a dumper writing each dump to a new core file in the given
+     * directory, named after the core id and a sequence number.
+     */
+    public Dumper(Regions regions, Path directory) {
+        this(Format.CORE, regions, null, directory);
+    }
+
+    private Dumper(Format format, Regions regions, WritableByteChannel out, Path directory) {
+        this.format = format;
+        this.regions = regions;
+        this.out = out;
+        this.directory = directory;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "vcpu-dumper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void halted(CPU cpu) {
+        dump(cpu);
+    }
+
+    /**
+     * Snapshots the CPU and queues the dump. Must not be called while the
+     * CPU, or another core sharing its memory, is running.
+     *
+     * @return completes once the dump is written
+     */
+    public CompletableFuture<Void> dump(CPU cpu) {
+        int[] registers = {
+            cpu.ip, cpu.sp, cpu.stackTop, cpu.stackLimit,
+            cpu.eax, cpu.ebx, cpu.ecx, cpu.edx,
+            cpu.coreId, cpu.halted ? 1 : 0
+        };
+        int[] pages = regions == Regions.DIRTY ? cpu.memory.dirtyPages() : null;
+        Memory snapshot = cpu.memory.fork();
+        long number = sequence.getAndIncrement();
+
+        return CompletableFuture.runAsync(() -> {
+            try {
+                int[] indices = pages != null ? pages : snapshot.allocatedPages();
+                if (out != null) {
+                    write(out, registers, snapshot, indices);
+                } else {
+                    Path file = directory.resolve("core-" + registers[8] + "-" + number + ".vcore");
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                        write(channel, registers, snapshot, indices);
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, writer);
+    }
+
+    private void write(WritableByteChannel channel, int[] registers, Memory memory, int[] pages) throws IOException {
+        buffer.clear();
+        if (format == Format.TEXT) {
+            writeText(channel, registers, memory, pages);
+        } else {
+            writeCore(channel, registers, memory, pages);
+        }
+
+        flush(channel);
+    }
+
+    private void writeText(WritableByteChannel channel, int[] registers, Memory memory, int[] pages) throws IOException {
+        byte[] dst = buffer.array();
+        buffer.put(HEADER);
+        int pos = HexEncoder.registers(dst, buffer.position(),
+                registers[0], registers[1], registers[4], registers[5], registers[6], registers[7]);
+        buffer.position(pos);
+        buffer.put(MEMORY_HEADER);
+
+        for (int index : pages) {
+            int start = index << Memory.PAGE_SHIFT;
+            memory.read(start, page, 0, Memory.PAGE_SIZE);
+            for (int off = 0; off < Memory.PAGE_SIZE; off += HexEncoder.LINE_BYTES) {
+                if (regions == Regions.NON_ZERO && isZero(page, off, HexEncoder.LINE_BYTES)) {
+                    continue;
+                }
+
+                if (buffer.remaining() < HexEncoder.LINE_LENGTH) {
+                    flush(channel);
+                }
+
+                buffer.position(HexEncoder.line(dst, buffer.position(), start + off, page, off));
+            }
+        }
+
+    }
+
+    private void writeCore(WritableByteChannel channel, int[] registers, Memory memory, int[] pages) throws IOException {
+        if (regions == Regions.NON_ZERO) {
+            pages = nonZero(memory, pages);
+        }
+
+        buffer.putInt(CORE_MAGIC);
+        buffer.putInt(CORE_VERSION);
+        for (int register : registers) {
+            buffer.putInt(register);
+        }
+
+        buffer.putInt(pages.length);
+        for (int index : pages) {
+            if (buffer.remaining() < 4 + Memory.PAGE_SIZE) {
+                flush(channel);
+            }
+
+            memory.read(index << Memory.PAGE_SHIFT, page, 0, Memory.PAGE_SIZE);
+            buffer.putInt(index);
+            buffer.put(page);
+        }
+    }
+
+    private int[] nonZero(Memory memory, int[] pages) {
+        int count = 0;
+        int[] kept = new int[pages.length];
+        for (int index : pages) {
+            memory.read(index << Memory.PAGE_SHIFT, page, 0, Memory.PAGE_SIZE);
+            if (!isZero(page, 0, Memory.PAGE_SIZE)) {
+                kept[count++] = index;
+            }
+        }
+
+        return Arrays.copyOf(kept, count);
+    }
+
+    private void flush(WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    private static boolean isZero(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits for queued dumps to be written, then stops the writer thread. If
+     * interrupted, returns without waiting and keeps the interrupt status.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
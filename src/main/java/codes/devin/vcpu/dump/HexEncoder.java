@@ -0,0 +1,103 @@
+package codes.devin.vcpu.dump;
+
+/**
+ * Table-driven hex encoding straight into byte arrays, for memory and
+ * register dumps.
+ */
+public final class HexEncoder {
+
+    public static final int LINE_BYTES = 16;
+
+    /**
+     * Length of a dump line: address, four spaces, each byte followed by a
+     * space, and a newline.
+     */
+    public static final int LINE_LENGTH = 8 + 4 + LINE_BYTES * 3 + 1;
+
+    /**
+     * Length of the encoded registers, without a newline.
+     */
+    public static final int REGISTERS_LENGTH = 2 * 5 + 4 * 6 + 6 * (8 + 1);
+
+    private static final byte[] DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    // Both hex digits of every byte value
+    private static final byte[] PAIRS = new byte[512];
+
+    private static final byte[][] REGISTER_NAMES = {
+        {'i', 'p', '=', '0', 'x'},
+        {'s', 'p', '=', '0', 'x'},
+        {'e', 'a', 'x', '=', '0', 'x'},
+        {'e', 'b', 'x', '=', '0', 'x'},
+        {'e', 'c', 'x', '=', '0', 'x'},
+        {'e', 'd', 'x', '=', '0', 'x'}
+    };
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            PAIRS[i * 2] = DIGITS[i >> 4];
+            PAIRS[i * 2 + 1] = DIGITS[i & 0xF];
+        }
+    }
+
+    private HexEncoder() {
+    }
+
+    /**
+     * Writes the value as eight hex digits.
+     *
+     * @return the position after the last byte written
+     */
+    public static int word(byte[] dst, int pos, int value) {
+        pos = pair(dst, pos, value >>> 24);
+        pos = pair(dst, pos, value >>> 16);
+        pos = pair(dst, pos, value >>> 8);
+        return pair(dst, pos, value);
+    }
+
+    /**
+     * Writes one dump line for the 16 bytes of data at the given offset.
+     *
+     * @return the position after the last byte written
+     */
+    public static int line(byte[] dst, int pos, int address, byte[] data, int offset) {
+        pos = word(dst, pos, address);
+        dst[pos++] = ' ';
+        dst[pos++] = ' ';
+        dst[pos++] = ' ';
+        dst[pos++] = ' ';
+        for (int i = 0; i < LINE_BYTES; i++) {
+            pos = pair(dst, pos, data[offset + i]);
+            dst[pos++] = ' ';
+        }
+
+        dst[pos++] = '\n';
+        return pos;
+    }
+
+    /**
+     * Writes registers in the format of {@link codes.devin.vcpu.CPU#dumpRegisters()}.
+     *
+     * @return the position after the last byte written
+     */
+    public static int registers(byte[] dst, int pos, int ip, int sp, int eax, int ebx, int ecx, int edx) {
+        int[] values = {ip, sp, eax, ebx, ecx, edx};
+        for (int i = 0; i < values.length; i++) {
+            byte[] name = REGISTER_NAMES[i];
+            System.arraycopy(name, 0, dst, pos, name.length);
+            pos = word(dst, pos + name.length, values[i]);
+            dst[pos++] = ' ';
+        }
+
+        return pos;
+    }
+
+    private static int pair(byte[] dst, int pos, int value) {
+        int i = (value & 0xFF) * 2;
+        dst[pos] = PAIRS[i];
+        dst[pos + 1] = PAIRS[i + 1];
+        return pos + 2;
+    }
+}
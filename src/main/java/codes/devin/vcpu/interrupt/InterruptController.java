@@ -0,0 +1,212 @@
+package codes.devin.vcpu.interrupt;
+
+import codes.devin.vcpu.Memory;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A CPU's interrupt controller.
+ *
+ * Handlers are found through a vector table in guest memory: 256 32-bit
+ * big-endian handler addresses, loaded with LIVT. A vector whose entry is 0,
+ * or any vector before a table is loaded, has no handler.
+ *
+ * Vectors below {@link #IRQ_BASE} are reserved for faults raised by the CPU
+ * and for {@link #NMI}. Maskable lines 0 to {@link #LINES} - 1 raise vectors
+ * from {@link #IRQ_BASE} up and are only delivered while interrupts are
+ * enabled (STI/CLI). The timer raises {@link #TIMER_LINE} every
+ * {@link #timerPeriod()} instructions.
+ *
+ * Lines may be raised from any thread; everything else belongs to the
+ * thread running the CPU.
+ */
+public final class InterruptController {
+
+    public static final int VECTORS = 256;
+
+    public static final int DIVIDE_ERROR = 0;
+    public static final int NMI = 2;
+    public static final int BREAKPOINT = 3;
+    public static final int INVALID_OPCODE = 6;
+    public static final int STACK_FAULT = 12;
+    public static final int GENERAL_PROTECTION = 13;
+    public static final int ALIGNMENT_CHECK = 17;
+
+    public static final int IRQ_BASE = 32;
+    public static final int LINES = 31;
+    public static final int TIMER_LINE = 0;
+
+    /**
+     * Bit 0 of the flags word pushed on entry to a handler.
+     */
+    public static final int FLAG_ENABLED = 1;
+
+    /**
+     * The number of ints in a saved state; see {@link #save()}.
+     */
+    public static final int STATE_INTS = 6;
+
+    private static final int NMI_PENDING = 1 << 31;
+    private static final long TIMER_OFF = Long.MAX_VALUE;
+
+    private static final VarHandle PENDING;
+
+    static {
+        try {
+            PENDING = MethodHandles.lookup().findVarHandle(InterruptController.class, "pending", int.class);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    // One bit per maskable line, and NMI_PENDING
+    private int pending;
+
+    // The pending bits that can be delivered right now
+    private int deliverable = NMI_PENDING;
+
+    private boolean tableLoaded;
+    private int table;
+    private int timerPeriod;
+    private long countdown = TIMER_OFF;
+
+    /**
+     * Raises a maskable line. It stays pending until delivered.
+     */
+    public void raise(int line) {
+        if (line < 0 || line >= LINES) {
+            throw new IllegalArgumentException("no such line: " + line);
+        }
+
+        PENDING.getAndBitwiseOr(this, 1 << line);
+    }
+
+    /**
+     * Raises the non-maskable line.
+     */
+    public void raiseNonMaskable() {
+        PENDING.getAndBitwiseOr(this, NMI_PENDING);
+    }
+
+    /**
+     * Counts down the timer and checks for deliverable interrupts. Called
+     * once per instruction, so it must stay cheap.
+     *
+     * @return whether {@link #next()} should be called
+     */
+    public boolean poll() {
+        return --countdown <= 0 || ((int) PENDING.getOpaque(this) & deliverable) != 0;
+    }
+
+    /**
+     * Whether {@link #poll()} can be skipped for a while: the timer is off
+     * and nothing deliverable is pending.
+     */
+    public boolean isQuiet() {
+        return timerPeriod == 0 && ((int) PENDING.getOpaque(this) & deliverable) == 0;
+    }
+
+    /**
+     * Reloads an expired timer and takes the highest priority deliverable
+     * interrupt: NMI, then the lowest numbered line.
+     *
+     * @return its vector, or -1 if there is none
+     */
+    public int next() {
+        if (countdown <= 0) {
+            countdown = timerPeriod;
+            PENDING.getAndBitwiseOr(this, 1 << TIMER_LINE);
+        }
+
+        int taken = (int) PENDING.getAcquire(this) & deliverable;
+        if (taken == 0) {
+            return -1;
+        }
+
+        int bit = (taken & NMI_PENDING) != 0 ? NMI_PENDING : Integer.lowestOneBit(taken);
+        PENDING.getAndBitwiseAnd(this, ~bit);
+        return bit == NMI_PENDING ? NMI : IRQ_BASE + Integer.numberOfTrailingZeros(bit);
+    }
+
+    /**
+     * Returns the handler address for a vector, or 0 if there is none.
+     */
+    public int handler(Memory memory, int vector) {
+        if (!tableLoaded || vector < 0 || vector >= VECTORS) {
+            return 0;
+        }
+
+        return memory.readInt(table + vector * 4);
+    }
+
+    public void loadTable(int address) {
+        table = address;
+        tableLoaded = true;
+    }
+
+    public boolean enabled() {
+        return deliverable != NMI_PENDING;
+    }
+
+    public void setEnabled(boolean enabled) {
+        deliverable = enabled ? -1 : NMI_PENDING;
+    }
+
+    /**
+     * The flags word saved on entry to a handler.
+     */
+    public int flags() {
+        return enabled() ? FLAG_ENABLED : 0;
+    }
+
+    public void restore(int flags) {
+        setEnabled((flags & FLAG_ENABLED) != 0);
+    }
+
+    public int timerPeriod() {
+        return timerPeriod;
+    }
+
+    /**
+     * Raises {@link #TIMER_LINE} every period instructions from now on, or
+     * never if the period is not positive.
+     */
+    public void setTimer(int period) {
+        timerPeriod = Math.max(period, 0);
+        countdown = timerPeriod > 0 ? timerPeriod : TIMER_OFF;
+    }
+
+    /**
+     * Saves the controller's state, including pending interrupts, as
+     * {@link #STATE_INTS} ints for a checkpoint.
+     */
+    public int[] save() {
+        return new int[]{
+            tableLoaded ? 1 : 0, table, enabled() ? 1 : 0, (int) PENDING.getAcquire(this),
+            timerPeriod, timerPeriod > 0 ? (int) countdown : 0
+        };
+    }
+
+    /**
+     * Restores state saved by {@link #save()}.
+     */
+    public void load(int[] state) {
+        tableLoaded = state[0] != 0;
+        table = state[1];
+        setEnabled(state[2] != 0);
+        PENDING.setRelease(this, state[3]);
+        timerPeriod = Math.max(state[4], 0);
+        countdown = timerPeriod > 0 ? state[5] : TIMER_OFF;
+    }
+
+    /**
+     * Copies everything but pending interrupts from another controller.
+     */
+    public void copyFrom(InterruptController other) {
+        deliverable = other.deliverable;
+        tableLoaded = other.tableLoaded;
+        table = other.table;
+        timerPeriod = other.timerPeriod;
+        countdown = other.countdown;
+    }
+}
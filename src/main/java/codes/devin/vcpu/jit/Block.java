@@ -0,0 +1,35 @@
+package codes.devin.vcpu.jit;
+
+import codes.devin.vcpu.Instruction;
+
+/**
+ * Execution state of a basic block entry point.
+ */
+final class Block {
+
+    final int entry;
+
+    /**
+     * One past the last byte of compiled code; only valid once compiled.
+     */
+    int end;
+
+    /**
+     * The compiled instructions; only valid once compiled.
+     */
+    Instruction[] instructions;
+
+    int entries;
+    CompiledBlock code;
+    boolean uncompilable;
+
+    Block(int entry) {
+        this.entry = entry;
+    }
+
+    boolean overlaps(int address, int length) {
+        // Addresses are unsigned
+        long start = Integer.toUnsignedLong(address);
+        return start < Integer.toUnsignedLong(end) && start + length > Integer.toUnsignedLong(entry);
+    }
+}
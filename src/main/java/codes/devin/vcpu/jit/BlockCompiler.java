@@ -0,0 +1,514 @@
+package codes.devin.vcpu.jit;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.Instruction;
+import codes.devin.vcpu.Memory;
+import codes.devin.vcpu.Register;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+/**
+ * Compiles guest basic blocks into hidden classes implementing
+ * {@link CompiledBlock}.
+ *
+ * Registers live in JVM locals for the duration of the block and are
+ * written back on exit. Memory reads call straight into {@link Memory}. A
+ * block ends at the first branch, the first instruction that writes memory
+ * (so that a block never runs code it has just overwritten), or the first
+ * instruction the compiler does not support.
+ */
+final class BlockCompiler {
+
+    static final int MAX_INSTRUCTIONS = 64;
+
+    private static final String CLASS_NAME = "codes/devin/vcpu/jit/GeneratedBlock";
+    private static final String CPU_NAME = Type.getInternalName(CPU.class);
+    private static final String MEMORY_NAME = Type.getInternalName(Memory.class);
+    private static final String[] REGISTER_FIELDS = {"eax", "ebx", "ecx", "edx", "sp"};
+
+    // Locals of the generated execute method
+    private static final int CPU_LOCAL = 1;
+    private static final int MEMORY_LOCAL = 2;
+    private static final int FIRST_REGISTER_LOCAL = 3;
+    private static final int TEMP_LOCAL = FIRST_REGISTER_LOCAL + REGISTER_FIELDS.length;
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    /**
+     * Compiles the block starting at the given address.
+     *
+     * @return the compiled block, or null if the first instruction cannot be
+     * compiled
+     */
+    CompiledBlock compile(CPU cpu, Block block) {
+        List<Instruction> insns = collect(cpu, block.entry);
+        if (insns.isEmpty()) {
+            return null;
+        }
+
+        Instruction last = insns.get(insns.size() - 1);
+        block.end = last.address + last.length;
+        block.instructions = insns.toArray(new Instruction[0]);
+
+        try {
+            Class<?> type = lookup.defineHiddenClass(generate(insns), true).lookupClass();
+            return (CompiledBlock) lookup.findConstructor(type, MethodType.methodType(void.class)).invoke();
+        } catch (Throwable ex) {
+            throw new IllegalStateException("failed to load compiled block at " + block.entry, ex);
+        }
+    }
+
+    private List<Instruction> collect(CPU cpu, int entry) {
+        List<Instruction> insns = new ArrayList<>();
+        int address = entry;
+        while (insns.size() < MAX_INSTRUCTIONS) {
+            Instruction insn;
+            try {
+                insn = cpu.decode(address);
+            } catch (RuntimeException ex) {
+                // Leave the fault to the interpreter
+                break;
+            }
+
+            if (!isSupported(insn)) {
+                break;
+            }
+
+            insns.add(insn);
+            address += insn.length;
+            if (insn.isBranch() || writesMemory(insn)) {
+                break;
+            }
+        }
+
+        return insns;
+    }
+
+    private static boolean isSupported(Instruction insn) {
+        switch (insn.opcode) {
+            case NOP:
+            case HWID:
+            case PUSH:
+            case APUSH:
+            case APOP:
+            case JMP:
+            case JEZ:
+            case JNZ:
+            case JLZ:
+            case JGZ:
+            case JEQ:
+            case JNE:
+            case JLT:
+            case JGE:
+            case JGT:
+            case JLE:
+            case CALL:
+            case RET:
+                return true;
+            case LOOP:
+                return insn.values[1] != Register.SLOT_IP;
+            case MOV:
+                return !insn.writesIp() && insn.kinds[0] != Instruction.INDIRECT;
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case INC:
+            case DEC:
+            case POP:
+                return !insn.writesIp();
+            default:
+                return false;
+        }
+    }
+
+    private static boolean writesMemory(Instruction insn) {
+        switch (insn.opcode) {
+            case MOV:
+                return insn.kinds[0] == Instruction.CONSTANT;
+            case PUSH:
+            case APUSH:
+            case CALL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean canFault(Instruction insn) {
+        switch (insn.opcode) {
+            case DIV:
+            case PUSH:
+            case POP:
+            case APUSH:
+            case APOP:
+            case CALL:
+            case RET:
+                return true;
+            case MOV:
+                if (insn.kinds[0] == Instruction.CONSTANT) {
+                    return true;
+                }
+                break;
+        }
+
+        for (int kind : insn.kinds) {
+            if (kind == Instruction.MEMORY_VALUE || kind == Instruction.INDIRECT) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private byte[] generate(List<Instruction> insns) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return "java/lang/Object";
+            }
+        };
+        cw.visit(V17, ACC_FINAL | ACC_SYNTHETIC, CLASS_NAME, null, "java/lang/Object",
+                new String[]{Type.getInternalName(CompiledBlock.class)});
+
+        MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "execute", "(L" + CPU_NAME + ";)I", null, null);
+        mv.visitCode();
+
+        // Load the registers into locals
+        mv.visitVarInsn(ALOAD, CPU_LOCAL);
+        mv.visitFieldInsn(GETFIELD, CPU_NAME, "memory", "L" + MEMORY_NAME + ";");
+        mv.visitVarInsn(ASTORE, MEMORY_LOCAL);
+        for (int slot = 0; slot < REGISTER_FIELDS.length; slot++) {
+            mv.visitVarInsn(ALOAD, CPU_LOCAL);
+            mv.visitFieldInsn(GETFIELD, CPU_NAME, REGISTER_FIELDS[slot], "I");
+            mv.visitVarInsn(ISTORE, FIRST_REGISTER_LOCAL + slot);
+        }
+
+        List<Label> handlers = new ArrayList<>();
+        List<Instruction> faulting = new ArrayList<>();
+        boolean returned = false;
+        for (Instruction insn : insns) {
+            Label end = null;
+            if (canFault(insn)) {
+                Label start = new Label();
+                Label handler = new Label();
+                end = new Label();
+                mv.visitTryCatchBlock(start, end, handler, "java/lang/RuntimeException");
+                mv.visitLabel(start);
+                handlers.add(handler);
+                faulting.add(insn);
+            }
+
+            returned = instruction(mv, insn);
+
+            if (end != null) {
+                mv.visitLabel(end);
+            }
+        }
+
+        if (!returned) {
+            Instruction last = insns.get(insns.size() - 1);
+            spill(mv);
+            push(mv, last.address + last.length);
+            mv.visitInsn(IRETURN);
+        }
+
+        // Fault handlers: write back state as of the faulting instruction and rethrow
+        for (int i = 0; i < handlers.size(); i++) {
+            mv.visitLabel(handlers.get(i));
+            spill(mv);
+            mv.visitVarInsn(ALOAD, CPU_LOCAL);
+            push(mv, faulting.get(i).address);
+            mv.visitFieldInsn(PUTFIELD, CPU_NAME, "ip", "I");
+            mv.visitInsn(ATHROW);
+        }
+
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * Emits a single instruction.
+     *
+     * @return true if the emitted code always returns
+     */
+    private boolean instruction(MethodVisitor mv, Instruction insn) {
+        int next = insn.address + insn.length;
+        switch (insn.opcode) {
+            case NOP:
+                return false;
+            case HWID:
+                mv.visitVarInsn(ALOAD, CPU_LOCAL);
+                mv.visitFieldInsn(GETFIELD, CPU_NAME, "coreId", "I");
+                mv.visitVarInsn(ISTORE, local(Register.SLOT_EAX));
+                return false;
+            case MOV:
+                if (insn.kinds[0] == Instruction.CONSTANT) {
+                    mv.visitVarInsn(ALOAD, CPU_LOCAL);
+                    push(mv, insn.values[0]);
+                    operand(mv, insn, 1);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, CPU_NAME, "store", "(II)V", false);
+                } else {
+                    operand(mv, insn, 1);
+                    mv.visitVarInsn(ISTORE, local(insn.values[0]));
+                }
+                return false;
+            case ADD:
+                arithmetic(mv, insn, IADD);
+                return false;
+            case SUB:
+                arithmetic(mv, insn, ISUB);
+                return false;
+            case MUL:
+                arithmetic(mv, insn, IMUL);
+                return false;
+            case DIV:
+                arithmetic(mv, insn, IDIV);
+                return false;
+            case INC:
+                mv.visitIincInsn(local(insn.values[0]), 1);
+                return false;
+            case DEC:
+                mv.visitIincInsn(local(insn.values[0]), -1);
+                return false;
+            case PUSH:
+                operand(mv, insn, 0);
+                mv.visitVarInsn(ISTORE, TEMP_LOCAL);
+                guestPush(mv, TEMP_LOCAL);
+                return false;
+            case POP:
+                guestPop(mv);
+                mv.visitVarInsn(ISTORE, local(insn.values[0]));
+                return false;
+            case APUSH:
+                // Fault before the first push, like the interpreter, so that
+                // the handler rolls back to the state before the instruction
+                guestCheck(mv, "checkPush");
+                guestPush(mv, local(Register.SLOT_EDX));
+                guestPush(mv, local(Register.SLOT_ECX));
+                guestPush(mv, local(Register.SLOT_EBX));
+                guestPush(mv, local(Register.SLOT_EAX));
+                return false;
+            case APOP:
+                guestCheck(mv, "checkPop");
+                guestPop(mv);
+                mv.visitVarInsn(ISTORE, local(Register.SLOT_EAX));
+                guestPop(mv);
+                mv.visitVarInsn(ISTORE, local(Register.SLOT_EBX));
+                guestPop(mv);
+                mv.visitVarInsn(ISTORE, local(Register.SLOT_ECX));
+                guestPop(mv);
+                mv.visitVarInsn(ISTORE, local(Register.SLOT_EDX));
+                return false;
+            case JMP:
+                operand(mv, insn, 0);
+                mv.visitVarInsn(ISTORE, TEMP_LOCAL);
+                spill(mv);
+                mv.visitVarInsn(ILOAD, TEMP_LOCAL);
+                mv.visitInsn(IRETURN);
+                return true;
+            case JEZ:
+                conditional(mv, insn, IFEQ);
+                return true;
+            case JNZ:
+                conditional(mv, insn, IFNE);
+                return true;
+            case JLZ:
+                conditional(mv, insn, IFLT);
+                return true;
+            case JGZ:
+                conditional(mv, insn, IFGT);
+                return true;
+            case JEQ:
+                compare(mv, insn, IF_ICMPEQ);
+                return true;
+            case JNE:
+                compare(mv, insn, IF_ICMPNE);
+                return true;
+            case JLT:
+                compare(mv, insn, IF_ICMPLT);
+                return true;
+            case JGE:
+                compare(mv, insn, IF_ICMPGE);
+                return true;
+            case JGT:
+                compare(mv, insn, IF_ICMPGT);
+                return true;
+            case JLE:
+                compare(mv, insn, IF_ICMPLE);
+                return true;
+            case LOOP:
+                mv.visitIincInsn(local(insn.values[1]), -1);
+                conditional(mv, insn, IFNE);
+                return true;
+            case CALL:
+                operand(mv, insn, 0);
+                mv.visitVarInsn(ISTORE, TEMP_LOCAL);
+                push(mv, next);
+                mv.visitVarInsn(ISTORE, TEMP_LOCAL + 1);
+                // The return address goes through a local like any other pushed value
+                guestPush(mv, TEMP_LOCAL + 1);
+                spill(mv);
+                mv.visitVarInsn(ILOAD, TEMP_LOCAL);
+                mv.visitInsn(IRETURN);
+                return true;
+            case RET:
+                spill(mv);
+                mv.visitVarInsn(ALOAD, CPU_LOCAL);
+                mv.visitMethodInsn(INVOKEVIRTUAL, CPU_NAME, "pop", "()I", false);
+                mv.visitInsn(IRETURN);
+                return true;
+            default:
+                throw new IllegalArgumentException("unsupported opcode: " + insn.opcode);
+        }
+    }
+
+    private void arithmetic(MethodVisitor mv, Instruction insn, int op) {
+        mv.visitVarInsn(ILOAD, local(insn.values[0]));
+        operand(mv, insn, 1);
+        mv.visitInsn(op);
+        mv.visitVarInsn(ISTORE, local(insn.values[0]));
+    }
+
+    private void conditional(MethodVisitor mv, Instruction insn, int op) {
+        Label taken = new Label();
+        spill(mv);
+        operand(mv, insn, 1);
+        mv.visitJumpInsn(op, taken);
+        push(mv, insn.address + insn.length);
+        mv.visitInsn(IRETURN);
+        mv.visitLabel(taken);
+        operand(mv, insn, 0);
+        mv.visitInsn(IRETURN);
+    }
+
+    private void compare(MethodVisitor mv, Instruction insn, int op) {
+        Label taken = new Label();
+        spill(mv);
+        operand(mv, insn, 1);
+        operand(mv, insn, 2);
+        mv.visitJumpInsn(op, taken);
+        push(mv, insn.address + insn.length);
+        mv.visitInsn(IRETURN);
+        mv.visitLabel(taken);
+        operand(mv, insn, 0);
+        mv.visitInsn(IRETURN);
+    }
+
+    /**
+     * Calls the given CPU method to check that four values can be pushed or
+     * popped.
+     */
+    private void guestCheck(MethodVisitor mv, String method) {
+        mv.visitVarInsn(ALOAD, CPU_LOCAL);
+        mv.visitVarInsn(ILOAD, local(Register.SLOT_SP));
+        mv.visitFieldInsn(PUTFIELD, CPU_NAME, "sp", "I");
+        mv.visitVarInsn(ALOAD, CPU_LOCAL);
+        push(mv, 4);
+        mv.visitMethodInsn(INVOKEVIRTUAL, CPU_NAME, method, "(I)V", false);
+    }
+
+    /**
+     * Pushes the value of the given local onto the guest stack.
+     */
+    private void guestPush(MethodVisitor mv, int valueLocal) {
+        int sp = local(Register.SLOT_SP);
+        mv.visitVarInsn(ALOAD, CPU_LOCAL);
+        mv.visitVarInsn(ILOAD, sp);
+        mv.visitFieldInsn(PUTFIELD, CPU_NAME, "sp", "I");
+        mv.visitVarInsn(ALOAD, CPU_LOCAL);
+        mv.visitVarInsn(ILOAD, valueLocal);
+        mv.visitMethodInsn(INVOKEVIRTUAL, CPU_NAME, "push", "(I)V", false);
+        mv.visitVarInsn(ALOAD, CPU_LOCAL);
+        mv.visitFieldInsn(GETFIELD, CPU_NAME, "sp", "I");
+        mv.visitVarInsn(ISTORE, sp);
+    }
+
+    /**
+     * Pops the guest stack, leaving the value on the operand stack.
+     */
+    private void guestPop(MethodVisitor mv) {
+        int sp = local(Register.SLOT_SP);
+        mv.visitVarInsn(ALOAD, CPU_LOCAL);
+        mv.visitVarInsn(ILOAD, sp);
+        mv.visitFieldInsn(PUTFIELD, CPU_NAME, "sp", "I");
+        mv.visitVarInsn(ALOAD, CPU_LOCAL);
+        mv.visitMethodInsn(INVOKEVIRTUAL, CPU_NAME, "pop", "()I", false);
+        mv.visitVarInsn(ALOAD, CPU_LOCAL);
+        mv.visitFieldInsn(GETFIELD, CPU_NAME, "sp", "I");
+        mv.visitVarInsn(ISTORE, sp);
+    }
+
+    private void operand(MethodVisitor mv, Instruction insn, int index) {
+        int value = insn.values[index];
+        switch (insn.kinds[index]) {
+            case Instruction.CONSTANT:
+                push(mv, value);
+                break;
+            case Instruction.REGISTER:
+                register(mv, insn, value);
+                break;
+            case Instruction.INDIRECT:
+                mv.visitVarInsn(ALOAD, MEMORY_LOCAL);
+                register(mv, insn, value);
+                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORY_NAME, "read", "(I)B", false);
+                break;
+            default:
+                mv.visitVarInsn(ALOAD, MEMORY_LOCAL);
+                push(mv, value);
+                mv.visitMethodInsn(INVOKEVIRTUAL, MEMORY_NAME, "read", "(I)B", false);
+                break;
+        }
+    }
+
+    private static void register(MethodVisitor mv, Instruction insn, int slot) {
+        if (slot == Register.SLOT_IP) {
+            // ip has already moved past the instruction when operands are read
+            push(mv, insn.address + insn.length);
+        } else {
+            mv.visitVarInsn(ILOAD, local(slot));
+        }
+    }
+
+    private static void spill(MethodVisitor mv) {
+        for (int slot = 0; slot < REGISTER_FIELDS.length; slot++) {
+            mv.visitVarInsn(ALOAD, CPU_LOCAL);
+            mv.visitVarInsn(ILOAD, FIRST_REGISTER_LOCAL + slot);
+            mv.visitFieldInsn(PUTFIELD, CPU_NAME, REGISTER_FIELDS[slot], "I");
+        }
+    }
+
+    private static int local(int slot) {
+        return FIRST_REGISTER_LOCAL + slot;
+    }
+
+    private static void push(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package codes.devin.vcpu.jit;
+
+/**
+ * Blocks by entry address, held in pages found through a sparse two-level
+ * table.
+ */
+final class BlockTable {
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int TABLE_SHIFT = 10;
+    private static final int TABLE_SIZE = 1 << TABLE_SHIFT;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    private final Block[][][] tables = new Block[1 << (32 - PAGE_SHIFT - TABLE_SHIFT)][][];
+    private int lastIndex = -1;
+    private Block[] lastPage;
+
+    Block get(int entry) {
+        int index = entry >>> PAGE_SHIFT;
+        Block[] page = lastPage;
+        if (index != lastIndex) {
+            Block[][] table = tables[index >>> TABLE_SHIFT];
+            if (table == null) {
+                table = tables[index >>> TABLE_SHIFT] = new Block[TABLE_SIZE][];
+            }
+
+            page = table[index & TABLE_MASK];
+            if (page == null) {
+                page = table[index & TABLE_MASK] = new Block[PAGE_SIZE];
+            }
+
+            lastIndex = index;
+            lastPage = page;
+        }
+
+        Block block = page[entry & PAGE_MASK];
+        if (block == null) {
+            block = page[entry & PAGE_MASK] = new Block(entry);
+        }
+
+        return block;
+    }
+}
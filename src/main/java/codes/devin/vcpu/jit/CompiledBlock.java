@@ -0,0 +1,18 @@
+package codes.devin.vcpu.jit;
+
+import codes.devin.vcpu.CPU;
+
+/**
+ * A guest basic block compiled to JVM bytecode.
+ */
+public interface CompiledBlock {
+
+    /**
+     * Executes the block and returns the address of the next instruction.
+     *
+     * If an instruction faults, the registers and ip are written back as they
+     * were before that instruction and the exception is rethrown, so the
+     * instruction can be re-executed by the interpreter.
+     */
+    int execute(CPU cpu);
+}
@@ -0,0 +1,178 @@
+package codes.devin.vcpu.jit;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.CodeListener;
+import codes.devin.vcpu.Instruction;
+import codes.devin.vcpu.metrics.Counters;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs a CPU one basic block at a time, interpreting blocks until they have
+ * been entered {@link #threshold} times and running them as compiled JVM
+ * code from then on.
+ *
+ * Anything the compiler does not support, any instruction that faults in
+ * compiled code, and everything while a tracer or profile is attached or
+ * while the interrupt controller needs polling, is executed by
+ * {@link CPU#cycle()}.
+ */
+public class TieredExecutor implements Runnable, CodeListener {
+
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    private final CPU cpu;
+    private final int threshold;
+    private final BlockCompiler compiler = new BlockCompiler();
+    private final BlockTable blocks;
+    private final List<Block> compiled = new ArrayList<>();
+    private final List<Block> uncompilable = new ArrayList<>();
+
+    public TieredExecutor(CPU cpu) {
+        this(cpu, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @throws IllegalStateException if the CPU already has a code listener,
+     * as compiled code must be dropped whenever the guest overwrites it
+     */
+    public TieredExecutor(CPU cpu, int threshold) {
+        if (cpu.codeListener != null) {
+            throw new IllegalStateException("CPU already has a code listener");
+        }
+
+        this.cpu = cpu;
+        this.threshold = threshold;
+        this.blocks = new BlockTable();
+        cpu.codeListener = this;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!cpu.halted) {
+                step();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            cpu.halt();
+        }
+    }
+
+    /**
+     * Executes the basic block at the current ip.
+     */
+    public void step() {
+        if (cpu.tracer != null || cpu.profile != null) {
+            // Compiled blocks cannot record or profile instructions one by one
+            interpret();
+            return;
+        }
+
+        if (!cpu.interrupts.isQuiet()) {
+            // Compiled blocks do not check for interrupts between instructions
+            interpret();
+            return;
+        }
+
+        Block block = blocks.get(cpu.ip);
+        if (block.code == null && !block.uncompilable && ++block.entries >= threshold) {
+            block.code = compiler.compile(cpu, block);
+            block.uncompilable = block.code == null;
+            if (block.code != null) {
+                compiled.add(block);
+            } else {
+                // Only the first instruction was looked at, and it can be no longer than this
+                block.end = block.entry + Instruction.MAX_LENGTH;
+                uncompilable.add(block);
+            }
+        }
+
+        if (block.code == null) {
+            interpret();
+            return;
+        }
+
+        try {
+            cpu.ip = block.code.execute(cpu);
+        } catch (RuntimeException ex) {
+            // The block has rolled back to the faulting instruction; re-execute
+            // it so that the fault is raised exactly as the interpreter raises it
+            if (cpu.counters != null) {
+                count(block, cpu.ip, false);
+            }
+
+            cpu.cycle();
+            return;
+        }
+
+        if (cpu.counters != null) {
+            count(block, cpu.ip, true);
+        }
+    }
+
+    /**
+     * Counts the compiled instructions that ran: all of them if the block
+     * completed, otherwise those before the faulting instruction at ip.
+     */
+    private void count(Block block, int ip, boolean completed) {
+        Counters counters = cpu.counters;
+        Instruction[] insns = block.instructions;
+        for (int i = 0; i < insns.length; i++) {
+            Instruction insn = insns[i];
+            if (completed) {
+                counters.retired(insn, i == insns.length - 1 ? ip : insn.address + insn.length);
+            } else if (insn.address == ip) {
+                break;
+            } else {
+                counters.retired(insn, insn.address + insn.length);
+            }
+        }
+    }
+
+    private void interpret() {
+        Instruction insn;
+        do {
+            insn = cpu.step();
+        } while (insn != null && !insn.isBranch() && !cpu.halted);
+    }
+
+    @Override
+    public void codeFlushed() {
+        for (Block block : compiled) {
+            reset(block);
+        }
+
+        for (Block block : uncompilable) {
+            reset(block);
+        }
+
+        compiled.clear();
+        uncompilable.clear();
+    }
+
+    @Override
+    public void codeModified(int address, int length) {
+        // Rewritten code may now compile, or no longer match what was compiled
+        drop(compiled, address, length);
+        drop(uncompilable, address, length);
+    }
+
+    private static void drop(List<Block> blocks, int address, int length) {
+        Iterator<Block> it = blocks.iterator();
+        while (it.hasNext()) {
+            Block block = it.next();
+            if (block.overlaps(address, length)) {
+                reset(block);
+                it.remove();
+            }
+        }
+    }
+
+    private static void reset(Block block) {
+        block.code = null;
+        block.uncompilable = false;
+        block.entries = 0;
+    }
+}
@@ -0,0 +1,164 @@
+package codes.devin.vcpu.link;
+
+import codes.devin.vcpu.asm.Assembler;
+import codes.devin.vcpu.asm.AssemblyException;
+import codes.devin.vcpu.asm.ObjectFile;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assembles source files into objects in parallel and links them.
+ *
+ * Objects are cached in a directory under the SHA-256 hash of their source,
+ * so only sources that changed since a previous build are assembled again.
+ */
+public class Build {
+
+    private final Path cache;
+    private final ForkJoinPool pool;
+    private final AtomicInteger assembled = new AtomicInteger();
+    private final AtomicInteger reused = new AtomicInteger();
+
+    public Build(Path cache) {
+        this(cache, ForkJoinPool.commonPool());
+    }
+
+    public Build(Path cache, ForkJoinPool pool) {
+        this.cache = cache;
+        this.pool = pool;
+    }
+
+    /**
+     * Builds an image from the given sources; the first holds the entry
+     * point.
+     */
+    public byte[] build(List<Path> sources) throws AssemblyException, LinkException, IOException {
+        List<ObjectFile> objects = assemble(sources);
+        Linker linker = new Linker();
+        for (int i = 0; i < sources.size(); i++) {
+            linker.add(sources.get(i).toString(), objects.get(i));
+        }
+
+        return linker.link();
+    }
+
+    /**
+     * Assembles the given sources concurrently, reusing cached objects.
+     *
+     * @return the objects, in the same order as the sources
+     */
+    public List<ObjectFile> assemble(List<Path> sources) throws AssemblyException, IOException {
+        Files.createDirectories(cache);
+
+        List<ForkJoinTask<ObjectFile>> tasks = new ArrayList<>();
+        for (Path source : sources) {
+            tasks.add(pool.submit(() -> object(source)));
+        }
+
+        List<ObjectFile> objects = new ArrayList<>();
+        for (ForkJoinTask<ObjectFile> task : tasks) {
+            try {
+                objects.add(task.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted", ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof AssemblyException) {
+                    throw (AssemblyException) cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+
+                throw new IllegalStateException(cause);
+            }
+        }
+
+        return objects;
+    }
+
+    /**
+     * Number of sources assembled so far.
+     */
+    public int assembled() {
+        return assembled.get();
+    }
+
+    /**
+     * Number of sources whose cached object was reused so far.
+     */
+    public int reused() {
+        return reused.get();
+    }
+
+    private ObjectFile object(Path source) throws AssemblyException, IOException {
+        byte[] text = Files.readAllBytes(source);
+        Path cached = cache.resolve(hash(text) + ".vo");
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(cached))) {
+            ObjectFile object = ObjectFile.read(in);
+            reused.incrementAndGet();
+            return object;
+        } catch (IOException ex) {
+            // Not cached yet, or unreadable; assemble it again
+        }
+
+        ObjectFile object;
+        try {
+            object = new Assembler(new InputStreamReader(new ByteArrayInputStream(text), StandardCharsets.UTF_8)).assembleObject();
+        } catch (AssemblyException ex) {
+            throw new AssemblyException(source + ": " + ex.getMessage(), ex);
+        }
+
+        // Write a temporary file first so that concurrent builds never see a partial object
+        Path temp = Files.createTempFile(cache, "object", ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                object.write(out);
+            }
+
+            Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        assembled.incrementAndGet();
+        return object;
+    }
+
+    private static String hash(byte[] text) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        // Objects from an older format must not be reused
+        digest.update((byte) ObjectFile.VERSION);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest(text)) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+}
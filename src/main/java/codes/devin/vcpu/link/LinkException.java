@@ -0,0 +1,12 @@
+package codes.devin.vcpu.link;
+
+public class LinkException extends Exception {
+
+    public LinkException(String message) {
+        super(message);
+    }
+
+    public LinkException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
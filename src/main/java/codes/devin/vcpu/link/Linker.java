@@ -0,0 +1,87 @@
+package codes.devin.vcpu.link;
+
+import codes.devin.vcpu.asm.ObjectFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines object files into a flat image loaded at address 0.
+ *
+ * Objects are laid out back to back in the order they are added, so the
+ * first object holds the entry point.
+ */
+public class Linker {
+
+    private final List<ObjectFile> objects = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * Adds an object; the name is used in error messages.
+     */
+    public Linker add(String name, ObjectFile object) {
+        objects.add(object);
+        names.add(name);
+        return this;
+    }
+
+    public byte[] link() throws LinkException {
+        int[] bases = new int[objects.size()];
+        int size = 0;
+        for (int i = 0; i < objects.size(); i++) {
+            bases[i] = size;
+            size += objects.get(i).code.length;
+        }
+
+        Map<String, Integer> symbols = new HashMap<>();
+        Map<String, String> definedBy = new HashMap<>();
+        for (int i = 0; i < objects.size(); i++) {
+            for (Map.Entry<String, Integer> export : objects.get(i).exports.entrySet()) {
+                String previous = definedBy.putIfAbsent(export.getKey(), names.get(i));
+                if (previous != null) {
+                    throw new LinkException("duplicate symbol " + export.getKey() + " in " + previous + " and " + names.get(i));
+                }
+
+                symbols.put(export.getKey(), bases[i] + export.getValue());
+            }
+        }
+
+        byte[] image = new byte[size];
+        for (int i = 0; i < objects.size(); i++) {
+            ObjectFile object = objects.get(i);
+            int base = bases[i];
+            System.arraycopy(object.code, 0, image, base, object.code.length);
+
+            int[] resolved = new int[object.imports.size()];
+            for (int j = 0; j < resolved.length; j++) {
+                Integer address = symbols.get(object.imports.get(j));
+                if (address == null) {
+                    throw new LinkException(names.get(i) + ": undefined symbol: " + object.imports.get(j));
+                }
+
+                resolved[j] = address;
+            }
+
+            for (int j = 0; j < object.relocationPositions.length; j++) {
+                int at = base + object.relocationPositions[j];
+                int symbol = object.relocationSymbols[j];
+                int value = getInt(image, at) + (symbol == ObjectFile.LOCAL ? base : resolved[symbol]);
+                putInt(image, at, value);
+            }
+        }
+
+        return image;
+    }
+
+    private static int getInt(byte[] src, int at) {
+        return (src[at] & 0xFF) << 24 | (src[at + 1] & 0xFF) << 16 | (src[at + 2] & 0xFF) << 8 | (src[at + 3] & 0xFF);
+    }
+
+    private static void putInt(byte[] dst, int at, int value) {
+        dst[at] = (byte) (value >>> 24);
+        dst[at + 1] = (byte) (value >>> 16);
+        dst[at + 2] = (byte) (value >>> 8);
+        dst[at + 3] = (byte) value;
+    }
+}
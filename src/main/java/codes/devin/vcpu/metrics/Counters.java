@@ -0,0 +1,83 @@
+package codes.devin.vcpu.metrics;
+
+import codes.devin.vcpu.Instruction;
+import codes.devin.vcpu.Opcode;
+
+/**
+ * Execution counters of a single CPU.
+ *
+ * Only the thread running the CPU writes to them, so they are plain fields;
+ * {@link Metrics} sums the counters of every CPU when read, and may see
+ * slightly stale values.
+ */
+public final class Counters {
+
+    private static final int OPCODES = Opcode.values().length;
+
+    final long[] retired = new long[OPCODES];
+    final long[] taken = new long[OPCODES];
+    final long[] notTaken = new long[OPCODES];
+    long pushes;
+    long pops;
+    long interrupts;
+    int maxStackDepth;
+
+    /**
+     * Counts an executed instruction. A conditional branch counts as taken
+     * if the next ip is anything other than the following instruction.
+     */
+    public void retired(Instruction insn, int ip) {
+        int index = insn.opcode.ordinal();
+        retired[index]++;
+        if (insn.isConditionalBranch()) {
+            if (ip == insn.address + insn.length) {
+                notTaken[index]++;
+            } else {
+                taken[index]++;
+            }
+        }
+    }
+
+    /**
+     * Counts a push leaving the given number of bytes on the stack.
+     */
+    public void pushed(int depth) {
+        pushes++;
+        if (depth > maxStackDepth) {
+            maxStackDepth = depth;
+        }
+    }
+
+    public void popped() {
+        pops++;
+    }
+
+    public void interrupted() {
+        interrupts++;
+    }
+
+    /**
+     * Adds these counters to the given totals.
+     */
+    void addTo(Counters totals) {
+        for (int i = 0; i < OPCODES; i++) {
+            totals.retired[i] += retired[i];
+            totals.taken[i] += taken[i];
+            totals.notTaken[i] += notTaken[i];
+        }
+
+        totals.pushes += pushes;
+        totals.pops += pops;
+        totals.interrupts += interrupts;
+        totals.maxStackDepth = Math.max(totals.maxStackDepth, maxStackDepth);
+    }
+
+    long instructions() {
+        long sum = 0;
+        for (long count : retired) {
+            sum += count;
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,58 @@
+package codes.devin.vcpu.metrics;
+
+import javax.management.ConstructorParameters;
+
+/**
+ * Execution totals of a single CPU, as published by
+ * {@link MetricsMXBean#getPerCpu()}.
+ */
+public final class CpuTotals {
+
+    private final long instructions;
+    private final double mips;
+    private final long pushes;
+    private final long pops;
+    private final int maxStackDepth;
+    private final long interrupts;
+
+    @ConstructorParameters({"instructions", "mips", "pushes", "pops", "maxStackDepth", "interrupts"})
+    public CpuTotals(long instructions, double mips, long pushes, long pops, int maxStackDepth, long interrupts) {
+        this.instructions = instructions;
+        this.mips = mips;
+        this.pushes = pushes;
+        this.pops = pops;
+        this.maxStackDepth = maxStackDepth;
+        this.interrupts = interrupts;
+    }
+
+    public long getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * Millions of instructions per second since the previous
+     * {@link MetricsMXBean#getPerCpu()}, or since the CPU was attached.
+     */
+    public double getMips() {
+        return mips;
+    }
+
+    public long getPushes() {
+        return pushes;
+    }
+
+    public long getPops() {
+        return pops;
+    }
+
+    /**
+     * Deepest stack seen, in bytes.
+     */
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    public long getInterrupts() {
+        return interrupts;
+    }
+}
@@ -0,0 +1,219 @@
+package codes.devin.vcpu.metrics;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.Opcode;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Aggregates the {@link Counters} of a group of CPUs, such as the cores of a
+ * {@link codes.devin.vcpu.Machine} or the jobs of a scheduler, and publishes
+ * the totals over JMX, both for the group and for each CPU.
+ *
+ * CPUs without counters pay a single null check per instruction.
+ */
+public final class Metrics implements MetricsMXBean, AutoCloseable {
+
+    public static final String DOMAIN = "codes.devin.vcpu";
+
+    private final ObjectName objectName;
+    private final List<Counters> attached = new CopyOnWriteArrayList<>();
+    private final Map<Counters, String> names = new ConcurrentHashMap<>();
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    // Instructions and time of the previous getPerCpu, by attached CPU
+    private final Map<Counters, long[]> lastPerCpu = new ConcurrentHashMap<>();
+
+    // Totals of detached CPUs
+    private final Counters detached = new Counters();
+
+    private long lastInstructions;
+    private long lastNanos = System.nanoTime();
+
+    public Metrics(String name) {
+        try {
+            this.objectName = new ObjectName(DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+        } catch (JMException ex) {
+            throw new IllegalArgumentException("invalid metrics name: " + name, ex);
+        }
+    }
+
+    /**
+     * Starts counting the given CPU's execution, published per CPU as
+     * "cpu-" followed by a number counting up from 0.
+     */
+    public Counters attach(CPU cpu) {
+        return attach(cpu, "cpu-" + sequence.getAndIncrement());
+    }
+
+    /**
+     * Starts counting the given CPU's execution, published per CPU under
+     * the given name, such as the name of its VM.
+     */
+    public Counters attach(CPU cpu, String name) {
+        Counters counters = new Counters();
+        cpu.counters = counters;
+        names.put(counters, name);
+        lastPerCpu.put(counters, new long[]{0, System.nanoTime()});
+        attached.add(counters);
+        return counters;
+    }
+
+    /**
+     * Stops counting the given CPU, keeping what it has counted so far in
+     * the totals. Must not be called while the CPU is running.
+     */
+    public void detach(CPU cpu) {
+        Counters counters = cpu.counters;
+        if (counters != null && attached.remove(counters)) {
+            cpu.counters = null;
+            names.remove(counters);
+            lastPerCpu.remove(counters);
+            synchronized (detached) {
+                counters.addTo(detached);
+            }
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     */
+    public Metrics register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException ex) {
+            throw new IllegalStateException("failed to register " + objectName, ex);
+        }
+
+        return this;
+    }
+
+    /**
+     * Unregisters these metrics, if registered.
+     */
+    @Override
+    public void close() {
+        try {
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+        } catch (JMException ex) {
+            throw new IllegalStateException("failed to unregister " + objectName, ex);
+        }
+    }
+
+    public ObjectName objectName() {
+        return objectName;
+    }
+
+    private Counters snapshot() {
+        Counters totals = new Counters();
+        synchronized (detached) {
+            detached.addTo(totals);
+        }
+
+        for (Counters counters : attached) {
+            counters.addTo(totals);
+        }
+
+        return totals;
+    }
+
+    @Override
+    public int getCpus() {
+        return attached.size();
+    }
+
+    @Override
+    public long getInstructions() {
+        return snapshot().instructions();
+    }
+
+    @Override
+    public synchronized double getMips() {
+        long instructions = getInstructions();
+        long nanos = System.nanoTime();
+        double mips = (instructions - lastInstructions) * 1e3 / Math.max(nanos - lastNanos, 1);
+        lastInstructions = instructions;
+        lastNanos = nanos;
+        return mips;
+    }
+
+    @Override
+    public Map<String, Long> getOpcodeCounts() {
+        return byOpcode(snapshot().retired);
+    }
+
+    @Override
+    public Map<String, Long> getBranchesTaken() {
+        return byOpcode(snapshot().taken);
+    }
+
+    @Override
+    public Map<String, Long> getBranchesNotTaken() {
+        return byOpcode(snapshot().notTaken);
+    }
+
+    @Override
+    public long getPushes() {
+        return snapshot().pushes;
+    }
+
+    @Override
+    public long getPops() {
+        return snapshot().pops;
+    }
+
+    @Override
+    public int getMaxStackDepth() {
+        return snapshot().maxStackDepth;
+    }
+
+    @Override
+    public long getInterrupts() {
+        return snapshot().interrupts;
+    }
+
+    @Override
+    public synchronized Map<String, CpuTotals> getPerCpu() {
+        Map<String, CpuTotals> map = new LinkedHashMap<>();
+        for (Counters counters : attached) {
+            String name = names.get(counters);
+            long[] last = lastPerCpu.get(counters);
+            if (name == null || last == null) {
+                // Detached meanwhile
+                continue;
+            }
+
+            Counters totals = new Counters();
+            counters.addTo(totals);
+            long instructions = totals.instructions();
+            long nanos = System.nanoTime();
+            double mips = (instructions - last[0]) * 1e3 / Math.max(nanos - last[1], 1);
+            last[0] = instructions;
+            last[1] = nanos;
+            map.put(name, new CpuTotals(instructions, mips, totals.pushes, totals.pops, totals.maxStackDepth,
+                    totals.interrupts));
+        }
+
+        return map;
+    }
+
+    private static Map<String, Long> byOpcode(long[] counts) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (Opcode opcode : Opcode.values()) {
+            if (counts[opcode.ordinal()] != 0) {
+                map.put(opcode.name(), counts[opcode.ordinal()]);
+            }
+        }
+
+        return map;
+    }
+}
@@ -0,0 +1,55 @@
+package codes.devin.vcpu.metrics;
+
+import java.util.Map;
+
+/**
+ * Execution totals of all CPUs attached to a {@link Metrics}.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * Number of CPUs currently attached.
+     */
+    int getCpus();
+
+    long getInstructions();
+
+    /**
+     * Millions of instructions per second since the previous call, or since
+     * the metrics were created.
+     */
+    double getMips();
+
+    /**
+     * Instructions retired, by opcode name.
+     */
+    Map<String, Long> getOpcodeCounts();
+
+    /**
+     * Conditional branches taken, by opcode name.
+     */
+    Map<String, Long> getBranchesTaken();
+
+    /**
+     * Conditional branches not taken, by opcode name.
+     */
+    Map<String, Long> getBranchesNotTaken();
+
+    long getPushes();
+
+    long getPops();
+
+    /**
+     * Deepest stack seen on any CPU, in bytes.
+     */
+    int getMaxStackDepth();
+
+    long getInterrupts();
+
+    /**
+     * Totals of each attached CPU, by the name it was attached with, so
+     * that each guest can be watched on its own. Detached CPUs only count
+     * towards the group totals.
+     */
+    Map<String, CpuTotals> getPerCpu();
+}
@@ -0,0 +1,142 @@
+package codes.devin.vcpu.metrics;
+
+import codes.devin.vcpu.Instruction;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-address execution counts of a single CPU, and for conditional jumps
+ * how often they were taken; see {@link codes.devin.vcpu.CPU#profile}.
+ *
+ * Profiles are saved as text keyed by label, so that they can be applied
+ * to the program's source: one line per executed address, "label+offset"
+ * from the nearest label at or before it, or the bare address if there is
+ * none, followed by the execution, taken and not-taken counts.
+ */
+public final class Profile {
+
+    private static final int EXECUTED = 0;
+    private static final int TAKEN = 1;
+    private static final int NOT_TAKEN = 2;
+
+    private final Map<Integer, long[]> counts = new HashMap<>();
+
+    /**
+     * Counts an executed instruction, given the next ip.
+     */
+    public void retired(Instruction insn, int ip) {
+        long[] count = counts.computeIfAbsent(insn.address, k -> new long[3]);
+        count[EXECUTED]++;
+        if (insn.isConditionalBranch()) {
+            count[ip == insn.address + insn.length ? NOT_TAKEN : TAKEN]++;
+        }
+    }
+
+    public long executed(int address) {
+        return get(address, EXECUTED);
+    }
+
+    public long taken(int address) {
+        return get(address, TAKEN);
+    }
+
+    public long notTaken(int address) {
+        return get(address, NOT_TAKEN);
+    }
+
+    private long get(int address, int index) {
+        long[] count = counts.get(address);
+        return count == null ? 0 : count[index];
+    }
+
+    /**
+     * Writes this profile keyed by the given labels.
+     */
+    public void write(Writer out, Map<String, Integer> labels) throws IOException {
+        // Label names by address; the first name wins where several share one
+        TreeMap<Integer, String> names = new TreeMap<>();
+        for (Map.Entry<String, Integer> label : labels.entrySet()) {
+            names.merge(label.getValue(), label.getKey(), (a, b) -> a.compareTo(b) <= 0 ? a : b);
+        }
+
+        List<Integer> addresses = new ArrayList<>(counts.keySet());
+        addresses.sort(null);
+
+        out.write("# location executed taken not-taken\n");
+        for (int address : addresses) {
+            Map.Entry<Integer, String> label = names.floorEntry(address);
+            String location = label == null ? Integer.toString(address) : label.getValue() + "+" + (address - label.getKey());
+            long[] count = counts.get(address);
+            out.write(location + " " + count[EXECUTED] + " " + count[TAKEN] + " " + count[NOT_TAKEN] + "\n");
+        }
+    }
+
+    /**
+     * Reads a profile written by {@link #write(Writer, Map)}, resolving its
+     * locations with the given labels.
+     *
+     * @throws IOException if the profile cannot be read, is invalid, or
+     * refers to an unknown label
+     */
+    public static Profile read(Reader in, Map<String, Integer> labels) throws IOException {
+        Profile profile = new Profile();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens[0].isEmpty()) {
+                continue;
+            }
+
+            if (tokens.length != 4) {
+                throw new IOException("line " + lineNumber + ": expected a location and three counts");
+            }
+
+            int address;
+            long[] count = new long[3];
+            try {
+                int plus = tokens[0].lastIndexOf('+');
+                if (plus < 0) {
+                    address = Integer.parseInt(tokens[0]);
+                } else {
+                    Integer base = labels.get(tokens[0].substring(0, plus));
+                    if (base == null) {
+                        throw new IOException("line " + lineNumber + ": unknown label: " + tokens[0].substring(0, plus));
+                    }
+
+                    address = base + Integer.parseInt(tokens[0].substring(plus + 1));
+                }
+
+                for (int i = 0; i < count.length; i++) {
+                    count[i] = Long.parseLong(tokens[i + 1]);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IOException("line " + lineNumber + ": invalid number: " + ex.getMessage());
+            }
+
+            profile.counts.merge(address, count, (a, b) -> {
+                for (int i = 0; i < a.length; i++) {
+                    a[i] += b[i];
+                }
+
+                return a;
+            });
+        }
+
+        return profile;
+    }
+}
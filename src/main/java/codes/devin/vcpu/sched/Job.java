@@ -0,0 +1,104 @@
+package codes.devin.vcpu.sched;
+
+import codes.devin.vcpu.CPU;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A CPU running under a {@link Scheduler}.
+ *
+ * The completion future completes with this job once the CPU halts or runs
+ * out of its cycle budget, and completes exceptionally if the CPU faults.
+ * A job leaves {@link State#RUNNING} exactly once, so a quantum finishing
+ * while the job is cancelled never overwrites {@link State#CANCELLED}.
+ */
+public final class Job {
+
+    public enum State {
+        RUNNING,
+        HALTED,
+        OUT_OF_CYCLES,
+        FAULTED,
+        CANCELLED
+    }
+
+    public final CPU cpu;
+    public final long budget;
+
+    private final CompletableFuture<Job> completion = new CompletableFuture<>();
+    private final AtomicReference<State> state = new AtomicReference<>(State.RUNNING);
+    private volatile long cycles;
+
+    Job(CPU cpu, long budget) {
+        this.cpu = cpu;
+        this.budget = budget;
+    }
+
+    public CompletableFuture<Job> completion() {
+        return completion;
+    }
+
+    public State state() {
+        return state.get();
+    }
+
+    /**
+     * Instructions executed so far.
+     */
+    public long cycles() {
+        return cycles;
+    }
+
+    /**
+     * Stops the job at the end of its current quantum.
+     */
+    public void cancel() {
+        if (finish(State.CANCELLED)) {
+            completion.cancel(false);
+        }
+    }
+
+    private boolean finish(State end) {
+        return state.compareAndSet(State.RUNNING, end);
+    }
+
+    /**
+     * Runs one quantum.
+     *
+     * @return true if the job should be scheduled again
+     */
+    boolean runQuantum(long quantum) {
+        if (completion.isDone()) {
+            // Cancelled, possibly through the future itself
+            finish(State.CANCELLED);
+            return false;
+        }
+
+        long slice = Math.min(quantum, budget - cycles);
+        try {
+            cycles += cpu.runFor(slice);
+        } catch (Throwable ex) {
+            cpu.halt();
+            if (finish(State.FAULTED)) {
+                completion.completeExceptionally(ex);
+            }
+            return false;
+        }
+
+        if (cpu.halted) {
+            if (finish(State.HALTED)) {
+                completion.complete(this);
+            }
+            return false;
+        }
+
+        if (cycles >= budget) {
+            if (finish(State.OUT_OF_CYCLES)) {
+                completion.complete(this);
+            }
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,106 @@
+package codes.devin.vcpu.sched;
+
+import codes.devin.vcpu.CPU;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many CPUs on a shared work-stealing pool.
+ *
+ * Each job runs for at most {@link #quantum} instructions at a time and is
+ * then requeued behind the other runnable jobs, so a guest stuck in an
+ * endless loop only ever holds a worker for one quantum.
+ */
+public class Scheduler implements AutoCloseable {
+
+    public static final long DEFAULT_QUANTUM = 10_000;
+
+    public final long quantum;
+
+    private final ForkJoinPool pool;
+
+    // Jobs that have not completed, so that shutdownNow can cancel them
+    private final Set<Job> unfinished = ConcurrentHashMap.newKeySet();
+
+    public Scheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUANTUM);
+    }
+
+    public Scheduler(int parallelism, long quantum) {
+        if (quantum < 1) {
+            throw new IllegalArgumentException("quantum must be positive");
+        }
+
+        this.quantum = quantum;
+        // asyncMode gives FIFO local queues, so requeued jobs take turns
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    public Job submit(CPU cpu) {
+        return submit(cpu, Long.MAX_VALUE);
+    }
+
+    /**
+     * Schedules a CPU to run until it halts or has executed the given number
+     * of instructions.
+     */
+    public Job submit(CPU cpu, long budget) {
+        Job job = new Job(cpu, budget);
+        unfinished.add(job);
+        job.completion().whenComplete((result, ex) -> unfinished.remove(job));
+        try {
+            pool.execute(new Quantum(job));
+        } catch (RejectedExecutionException ex) {
+            // Shut down
+            unfinished.remove(job);
+            job.cancel();
+            throw ex;
+        }
+
+        return job;
+    }
+
+    /**
+     * Waits for every submitted job to finish, then shuts down the pool.
+     */
+    @Override
+    public void close() {
+        pool.awaitQuiescence(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        pool.shutdown();
+    }
+
+    /**
+     * Shuts down the pool and cancels every unfinished job. Queued jobs are
+     * dropped; running jobs stop at the end of their current quantum. Either
+     * way their completion futures complete with a CancellationException.
+     */
+    public void shutdownNow() {
+        pool.shutdownNow();
+        for (Job job : unfinished) {
+            job.cancel();
+        }
+    }
+
+    private final class Quantum implements Runnable {
+
+        private final Job job;
+
+        Quantum(Job job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            if (job.runQuantum(quantum)) {
+                try {
+                    pool.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    job.cancel();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package codes.devin.vcpu.trace;
+
+import codes.devin.vcpu.Instruction;
+import codes.devin.vcpu.Opcode;
+import codes.devin.vcpu.Register;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a trace file written by {@link Tracer}, one record at a time. The
+ * fields describe the current record.
+ */
+public final class TraceReader implements AutoCloseable {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final int recordInts;
+    private final int operandSlots;
+
+    public int ip;
+    public Opcode opcode;
+    public final int[] kinds = new int[Tracer.OPERANDS];
+    public final int[] values = new int[Tracer.OPERANDS];
+    public int operands;
+
+    /**
+     * Registers after the instruction.
+     */
+    public int eax;
+    public int ebx;
+    public int ecx;
+    public int edx;
+    public int sp;
+
+    /**
+     * If nonzero, the current record stands for this many lost records
+     * rather than an instruction.
+     */
+    public int lost;
+
+    public TraceReader(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        buffer.limit(0);
+        if (!fill(12) || buffer.getInt() != Tracer.MAGIC) {
+            throw new IOException("not a trace file: " + file);
+        }
+
+        int version = buffer.getInt();
+        if (version != 1 && version != Tracer.VERSION) {
+            throw new IOException("unsupported trace version");
+        }
+
+        // Version 1 records have room for three operands
+        this.operandSlots = version == 1 ? 3 : Tracer.OPERANDS;
+        this.recordInts = buffer.getInt();
+        if (recordInts < Tracer.RECORD_INTS - Tracer.OPERANDS + operandSlots) {
+            throw new IOException("unsupported trace record size: " + recordInts);
+        }
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return false at the end of the trace
+     */
+    public boolean next() throws IOException {
+        if (!fill(recordInts * 4)) {
+            return false;
+        }
+
+        ip = buffer.getInt();
+        int header = buffer.getInt();
+        for (int i = 0; i < Tracer.OPERANDS; i++) {
+            values[i] = i < operandSlots ? buffer.getInt() : 0;
+        }
+
+        eax = buffer.getInt();
+        ebx = buffer.getInt();
+        ecx = buffer.getInt();
+        edx = buffer.getInt();
+        sp = buffer.getInt();
+        buffer.position(buffer.position() + (recordInts - (Tracer.RECORD_INTS - Tracer.OPERANDS + operandSlots)) * 4);
+
+        if (header == Tracer.GAP) {
+            lost = values[0];
+            opcode = null;
+            operands = 0;
+            return true;
+        }
+
+        lost = 0;
+        opcode = Opcode.get((byte) (header >>> 24));
+        operands = header & 0xFF;
+        for (int i = 0; i < Tracer.OPERANDS; i++) {
+            kinds[i] = (header >>> (22 - i * 2)) & 0x03;
+        }
+
+        return true;
+    }
+
+    private boolean fill(int length) throws IOException {
+        if (buffer.remaining() >= length) {
+            return true;
+        }
+
+        buffer.compact();
+        while (buffer.position() < length) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == 0) {
+                    buffer.flip();
+                    return false;
+                }
+
+                throw new EOFException("truncated trace record");
+            }
+        }
+
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Formats the current record as one line of assembly followed by the
+     * registers.
+     */
+    @Override
+    public String toString() {
+        if (opcode == null) {
+            return "... " + Integer.toUnsignedString(lost) + " instructions lost";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%08X    ", ip));
+
+        int start = sb.length();
+        sb.append(opcode.name().toLowerCase());
+        for (int i = 0; i < operands; i++) {
+            sb.append(i == 0 ? " " : ", ");
+            switch (kinds[i]) {
+                case Instruction.REGISTER:
+                    sb.append(Register.slot(values[i]).name().toLowerCase());
+                    break;
+                case Instruction.MEMORY_VALUE:
+                    sb.append(String.format("[0x%X]", values[i]));
+                    break;
+                case Instruction.INDIRECT:
+                    sb.append('[').append(Register.slot(values[i]).name().toLowerCase()).append(']');
+                    break;
+                default:
+                    sb.append(String.format("0x%X", values[i]));
+                    break;
+            }
+        }
+
+        // At least one space, as four operands can fill the column
+        do {
+            sb.append(' ');
+        } while (sb.length() - start < 32);
+
+        sb.append(String.format("eax=0x%08X ebx=0x%08X ecx=0x%08X edx=0x%08X sp=0x%08X", eax, ebx, ecx, edx, sp));
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Prints a trace file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TraceReader trace.bin");
+            System.exit(1);
+        }
+
+        try (TraceReader reader = new TraceReader(Paths.get(args[0]))) {
+            while (reader.next()) {
+                System.out.println(reader);
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package codes.devin.vcpu.trace;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.Instruction;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records every instruction a CPU retires into a preallocated ring buffer,
+ * keeping the most recent {@link #capacity} instructions.
+ *
+ * The CPU thread is the only writer and never blocks or allocates. A
+ * background thread copies records out of the ring, either continuously to a
+ * trace file ({@link #stream(Path)}) or once on request ({@link #save(Path)});
+ * records the CPU overwrote before they were copied are replaced with a gap
+ * record.
+ *
+ * A trace file starts with {@link #MAGIC}, {@link #VERSION} and the number
+ * of ints per record, followed by records of big-endian ints:
+ *
+ * <pre>
+ * int    ip
+ * int    opcode (bits 31-24), operand kinds as in the encoding (bits 23-16),
+ *        operand count (bits 7-0); all ones for a gap
+ * int[4] operand values, with register operands as slots (see
+ *        {@link codes.devin.vcpu.Register#SLOT_EAX}); for a gap, the first
+ *        is the number of records lost
+ * int[5] eax, ebx, ecx, edx and sp after the instruction
+ * </pre>
+ *
+ * Version 1 traces have only three operand values per record.
+ *
+ * Use {@link TraceReader} to decode a trace file.
+ */
+public final class Tracer implements AutoCloseable {
+
+    public static final int MAGIC = 0x56545243; // "VTRC"
+    public static final int VERSION = 2;
+
+    public static final int OPERANDS = 4;
+    public static final int RECORD_INTS = 2 + OPERANDS + 5;
+    public static final int GAP = -1;
+
+    public static final int MAX_CAPACITY = 1 << 26;
+
+    private static final long FLUSH_INTERVAL_MILLIS = 10;
+    private static final int CHUNK_RECORDS = 1024;
+
+    private static final VarHandle HEAD;
+
+    static {
+        try {
+            HEAD = MethodHandles.lookup().findVarHandle(Tracer.class, "head", long.class);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    /**
+     * Number of records kept; one less than a power of two, as the ring
+     * keeps a free slot for the record being written.
+     */
+    public final int capacity;
+
+    private final int mask;
+    private final int[] ring;
+    private final ScheduledExecutorService writer;
+
+    // Records written so far; published with release semantics
+    private long head;
+
+    // Only used by the writer thread; stream() sets up the stream before
+    // scheduling the flusher
+    private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_RECORDS * RECORD_INTS * 4);
+    private final int[] chunk = new int[CHUNK_RECORDS * RECORD_INTS];
+    private FileChannel stream;
+    private long streamed;
+    private ScheduledFuture<?> flusher;
+
+    /**
+     * Creates a tracer keeping at least the given number of records.
+     */
+    public Tracer(int capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+
+        int slots = Integer.highestOneBit(capacity) << 1;
+        this.capacity = slots - 1;
+        this.mask = slots - 1;
+        this.ring = new int[slots * RECORD_INTS];
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "vcpu-tracer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts tracing the given CPU. A tracer traces one CPU at a time.
+     */
+    public void attach(CPU cpu) {
+        cpu.tracer = this;
+    }
+
+    /**
+     * Records an instruction the CPU has just executed. Called by the CPU.
+     */
+    public void record(CPU cpu, Instruction insn) {
+        long h = head;
+        int[] ring = this.ring;
+        int i = (int) (h & mask) * RECORD_INTS;
+        int[] kinds = insn.kinds;
+        int[] values = insn.values;
+        int count = Math.min(kinds.length, OPERANDS);
+        int flags = 0;
+        for (int j = 0; j < count; j++) {
+            flags |= kinds[j] << (6 - j * 2);
+            ring[i + 2 + j] = values[j];
+        }
+
+        for (int j = count; j < OPERANDS; j++) {
+            ring[i + 2 + j] = 0;
+        }
+
+        ring[i] = insn.address;
+        ring[i + 1] = (insn.opcode.opcode & 0xFF) << 24 | flags << 16 | count;
+        i += 2 + OPERANDS;
+        ring[i] = cpu.eax;
+        ring[i + 1] = cpu.ebx;
+        ring[i + 2] = cpu.ecx;
+        ring[i + 3] = cpu.edx;
+        ring[i + 4] = cpu.sp;
+        HEAD.setRelease(this, h + 1);
+    }
+
+    /**
+     * Number of instructions recorded so far.
+     */
+    public long recorded() {
+        return (long) HEAD.getAcquire(this);
+    }
+
+    /**
+     * Starts copying records to the given file in the background, beginning
+     * with the oldest record still in the ring.
+     */
+    public synchronized void stream(Path file) throws IOException {
+        if (flusher != null) {
+            throw new IllegalStateException("already streaming");
+        }
+
+        stream = open(file);
+        streamed = Math.max(recorded() - capacity, 0);
+        flusher = writer.scheduleWithFixedDelay(() -> {
+            try {
+                streamed = copy(stream, streamed, recorded());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, 0, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the records currently in the ring to the given file in the
+     * background.
+     */
+    public CompletableFuture<Void> save(Path file) {
+        long end = recorded();
+        return CompletableFuture.runAsync(() -> {
+            try (FileChannel channel = open(file)) {
+                copy(channel, Math.max(end - capacity, 0), end);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, writer);
+    }
+
+    /**
+     * Copies records [from, to) to the channel, replacing any that were
+     * overwritten with gap records.
+     *
+     * @return the record after the last one copied
+     */
+    private long copy(FileChannel channel, long from, long to) throws IOException {
+        long oldest = to - capacity;
+        if (from < oldest) {
+            gap(channel, oldest - from);
+            from = oldest;
+        }
+
+        while (from < to) {
+            int count = (int) Math.min(to - from, CHUNK_RECORDS);
+            for (int n = 0; n < count; n++) {
+                int i = (int) ((from + n) & mask) * RECORD_INTS;
+                System.arraycopy(ring, i, chunk, n * RECORD_INTS, RECORD_INTS);
+            }
+
+            // Records the CPU has lapped while we copied them may be torn
+            VarHandle.loadLoadFence();
+            long overwritten = recorded() - capacity;
+            if (overwritten > from) {
+                long lost = Math.min(overwritten, to) - from;
+                gap(channel, lost);
+                from += lost;
+                continue;
+            }
+
+            buffer.clear();
+            buffer.asIntBuffer().put(chunk, 0, count * RECORD_INTS);
+            buffer.limit(count * RECORD_INTS * 4);
+            writeFully(channel);
+            from += count;
+        }
+
+        return from;
+    }
+
+    private void gap(FileChannel channel, long lost) throws IOException {
+        buffer.clear();
+        buffer.putInt(0).putInt(GAP).putInt((int) Math.min(lost, Integer.MAX_VALUE));
+        for (int i = 3; i < RECORD_INTS; i++) {
+            buffer.putInt(0);
+        }
+
+        buffer.flip();
+        writeFully(channel);
+    }
+
+    private FileChannel open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_INTS).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        return channel;
+    }
+
+    private void writeFully(FileChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Stops tracing, after flushing streamed records and finishing pending
+     * saves.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (flusher != null) {
+                flusher.cancel(false);
+            }
+        }
+
+        try {
+            writer.submit(() -> {
+                if (stream != null) {
+                    streamed = copy(stream, streamed, recorded());
+                    stream.close();
+                }
+
+                return null;
+            }).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            writer.shutdown();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package codes.devin.vcpu.workload;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.asm.Assembler;
+import codes.devin.vcpu.asm.AssemblyException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The standard guest workloads, assembled from src/main/resources/workloads,
+ * with the registers each one halts with.
+ */
+public enum Workload {
+
+    ARITHMETIC("arithmetic", 0x89090900, 0xB3B2E1C0, 0, 0x7FB6DA40), // add/mul/sub loop, 2M iterations
+    FIBONACCI("fibonacci", 0xB520, 0x6FF1, 0, 0), // recursive fib(24) with CALL and PUSH/POP
+    MEMSCAN("memscan", 0xE035C001, 0x30000, 0, 0xFFFCA130), // fills 64 KiB with words, sums it bytewise 8 times
+    STATE_MACHINE("statemachine", 0xA893A921, 0x52575, 0, 0), // three-state automaton over random input
+    BUBBLE_SORT("bubblesort", 0xCA5ADDE3, 0x4640, 0, 0x7FBB), // sorts 400 words in memory
+    VECTORS("vectors", 0x8EAC4800, 0x28000, 0, 0x950D1000); // vector add/mul/sub, dot product and sum over 4096 words, 200 rounds
+
+    public final String fileName;
+    public final int eax;
+    public final int ebx;
+    public final int ecx;
+    public final int edx;
+
+    private Workload(String name, int eax, int ebx, int ecx, int edx) {
+        this.fileName = name;
+        this.eax = eax;
+        this.ebx = ebx;
+        this.ecx = ecx;
+        this.edx = edx;
+    }
+
+    public byte[] assemble() throws AssemblyException, IOException {
+        InputStream in = Workload.class.getResourceAsStream("/workloads/" + fileName + ".asm");
+        if (in == null) {
+            throw new IOException("missing workload source: " + fileName);
+        }
+
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return new Assembler(reader).assemble();
+        }
+    }
+
+    /**
+     * Describes how the CPU's registers differ from the expected ones.
+     *
+     * @return null if they match
+     */
+    public String check(CPU cpu) {
+        if (cpu.eax == eax && cpu.ebx == ebx && cpu.ecx == ecx && cpu.edx == edx) {
+            return null;
+        }
+
+        return String.format("expected eax=0x%08X ebx=0x%08X ecx=0x%08X edx=0x%08X, got eax=0x%08X ebx=0x%08X ecx=0x%08X edx=0x%08X",
+                eax, ebx, ecx, edx, cpu.eax, cpu.ebx, cpu.ecx, cpu.edx);
+    }
+}
@@ -0,0 +1,129 @@
+package codes.devin.vcpu.workload;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.Fusion;
+import codes.devin.vcpu.Memory;
+import codes.devin.vcpu.jit.TieredExecutor;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Runs each {@link Workload} to HLT a number of times after warming up,
+ * checks its registers and prints the results as JSON. Each workload is
+ * also run once without superinstructions, and fails if that run ends
+ * differently.
+ *
+ * Every run starts from a fresh CPU, so each workload retires the same
+ * number of instructions on every run and every commit. Wall times are the
+ * median and minimum over the measured runs; MIPS is based on the median.
+ */
+public class WorkloadRunner {
+
+    public static final int DEFAULT_WARMUP = 5;
+    public static final int DEFAULT_REPEATS = 10;
+
+    private final boolean jit;
+    private final int warmup;
+    private final int repeats;
+    private final Fusion fusion;
+
+    public WorkloadRunner(boolean jit, int warmup, int repeats) {
+        this(jit, warmup, repeats, Fusion.DEFAULT);
+    }
+
+    /**
+     * @param fusion the superinstructions the interpreter uses
+     */
+    public WorkloadRunner(boolean jit, int warmup, int repeats, Fusion fusion) {
+        if (warmup < 0 || repeats < 1) {
+            throw new IllegalArgumentException("invalid warmup or repeat count");
+        }
+
+        this.jit = jit;
+        this.warmup = warmup;
+        this.repeats = repeats;
+        this.fusion = fusion;
+    }
+
+    /**
+     * @return whether every workload halted with the expected registers
+     */
+    public boolean run(PrintStream out) throws Exception {
+        boolean ok = true;
+        out.println("{");
+        out.println("  \"executor\": \"" + (jit ? "tiered" : "interpreter") + "\",");
+        out.println("  \"java\": \"" + System.getProperty("java.version") + "\",");
+        out.println("  \"warmup\": " + warmup + ",");
+        out.println("  \"repeats\": " + repeats + ",");
+        out.println("  \"fusedSequences\": " + fusion.size() + ",");
+        out.println("  \"vectorLanes\": " + Memory.vectorLanes() + ",");
+        out.println("  \"workloads\": [");
+
+        Workload[] workloads = Workload.values();
+        for (int w = 0; w < workloads.length; w++) {
+            Workload workload = workloads[w];
+            byte[] program = workload.assemble();
+
+            // The interpreter counts instructions; the tiered executor does not
+            CPU counted = new CPU(program);
+            counted.fusion = fusion;
+            long instructions = counted.runFor(Long.MAX_VALUE);
+            String error = workload.check(counted);
+
+            // Superinstructions must not change what the program does
+            CPU unfused = new CPU(program);
+            unfused.fusion = Fusion.NONE;
+            long unfusedInstructions = unfused.runFor(Long.MAX_VALUE);
+            if (error == null && (unfusedInstructions != instructions
+                    || !unfused.dumpRegisters().equals(counted.dumpRegisters()))) {
+                error = "fused and unfused runs differ";
+            }
+
+            for (int i = 0; i < warmup && error == null; i++) {
+                error = workload.check(execute(program));
+            }
+
+            long[] nanos = new long[repeats];
+            for (int i = 0; i < repeats && error == null; i++) {
+                long start = System.nanoTime();
+                CPU cpu = execute(program);
+                nanos[i] = System.nanoTime() - start;
+                error = workload.check(cpu);
+            }
+
+            Arrays.sort(nanos);
+            long median = nanos[repeats / 2];
+            out.print("    {\"name\": \"" + workload.fileName + "\", \"instructions\": " + instructions);
+            if (error == null) {
+                out.printf(", \"medianNanos\": %d, \"minNanos\": %d, \"mips\": %.1f, \"ok\": true}",
+                        median, nanos[0], instructions * 1e3 / median);
+            } else {
+                ok = false;
+                out.print(", \"ok\": false, \"error\": \"" + error + "\"}");
+            }
+
+            out.println(w < workloads.length - 1 ? "," : "");
+        }
+
+        out.println("  ]");
+        out.println("}");
+        return ok;
+    }
+
+    private CPU execute(byte[] program) {
+        CPU cpu = new CPU(program);
+        cpu.fusion = fusion;
+        if (jit) {
+            TieredExecutor executor = new TieredExecutor(cpu);
+            while (!cpu.halted) {
+                executor.step();
+            }
+        } else {
+            while (!cpu.halted) {
+                cpu.cycle();
+            }
+        }
+
+        return cpu;
+    }
+}
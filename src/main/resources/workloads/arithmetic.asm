@@ -0,0 +1,9 @@
+mov ecx 2000000
+:loop
+add eax 7
+mul eax 3
+sub ebx eax
+add edx ebx
+sub ecx 1
+jnz loop ecx
+hlt
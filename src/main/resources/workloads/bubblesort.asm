@@ -0,0 +1,45 @@
+mov eax 12345
+mov ebx 0x4000
+mov ecx 400
+:init
+mul eax 1103515245
+add eax 12345
+mov edx eax
+div edx 65536
+store [ebx] edx
+add ebx 4
+sub ecx 1
+jnz init ecx
+mov ecx 399
+:outer
+push ecx
+mov ebx 0x4000
+:inner
+load eax [ebx]
+add ebx 4
+load edx [ebx]
+sub edx eax
+jgz ordered edx
+jez ordered edx
+add edx eax
+store [ebx] eax
+sub ebx 4
+store [ebx] edx
+add ebx 4
+:ordered
+sub ecx 1
+jnz inner ecx
+pop ecx
+sub ecx 1
+jnz outer ecx
+mov eax 0
+mov ebx 0x4000
+mov ecx 400
+:checksum
+load edx [ebx]
+mul edx ecx
+add eax edx
+add ebx 4
+sub ecx 1
+jnz checksum ecx
+hlt
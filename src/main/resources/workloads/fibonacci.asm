@@ -0,0 +1,23 @@
+mov eax 24
+call fib
+hlt
+:fib
+jgz fib_pos eax
+ret
+:fib_pos
+mov ebx eax
+sub ebx 1
+jnz fib_rec ebx
+ret
+:fib_rec
+push eax
+sub eax 1
+call fib
+pop ebx
+push eax
+mov eax ebx
+sub eax 2
+call fib
+pop ebx
+add eax ebx
+ret
@@ -0,0 +1,24 @@
+mov eax 1
+mov ebx 0x20000
+mov ecx 16384
+:fill
+mul eax 1103515245
+add eax 12345
+store [ebx] eax
+add ebx 4
+sub ecx 1
+jnz fill ecx
+mov ecx 8
+:pass
+push ecx
+mov ebx 0x20000
+mov ecx 65536
+:scan
+add edx [ebx]
+add ebx 1
+sub ecx 1
+jnz scan ecx
+pop ecx
+sub ecx 1
+jnz pass ecx
+hlt
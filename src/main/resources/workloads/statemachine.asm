@@ -0,0 +1,37 @@
+mov edx 300000
+store [0x1000] edx
+mov eax 1
+:step
+mul eax 1103515245
+add eax 12345
+mov edx eax
+div edx 65536
+jez s0 ecx
+sub ecx 1
+jez s1 ecx
+jlz to0 edx
+mov ecx 2
+jmp next
+:s0
+jgz to1 edx
+jmp next
+:s1
+jlz to2 edx
+jmp to0
+:to0
+mov ecx 0
+add ebx 1
+jmp next
+:to1
+mov ecx 1
+add ebx 2
+jmp next
+:to2
+mov ecx 2
+add ebx 3
+:next
+load edx [0x1000]
+sub edx 1
+store [0x1000] edx
+jnz step edx
+hlt
@@ -0,0 +1,23 @@
+mov eax 12345
+mov ebx 0x20000
+mov ecx 8192
+:init
+mul eax 1103515245
+add eax 12345
+store [ebx] eax
+add ebx 4
+sub ecx 1
+jnz init ecx
+mov ecx 200
+mov edx 0
+:round
+vadd [0x28000] [0x20000] [0x24000] 4096
+vmul [0x28000] [0x28000] [0x20000] 4096
+vsub [0x24000] [0x28000] [0x24000] 4096
+vdot eax [0x20000] [0x28000] 4096
+add edx eax
+vsum eax [0x24000] 4096
+add edx eax
+sub ecx 1
+jnz round ecx
+hlt
@@ -0,0 +1,45 @@
+package codes.devin.vcpu.benchmarks;
+
+import codes.devin.vcpu.asm.Assembler;
+import codes.devin.vcpu.asm.AssemblyException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Assembly throughput on a large generated source. One operation is one
+ * source line.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AssemblerBenchmark {
+
+    static final int LINES = 100_000;
+
+    private String source;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        source = Programs.generate(LINES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public byte[] assemble() throws AssemblyException {
+        return new Assembler(source).assemble();
+    }
+}
@@ -0,0 +1,85 @@
+package codes.devin.vcpu.benchmarks;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.jit.TieredExecutor;
+import codes.devin.vcpu.trace.Tracer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw interpreter dispatch throughput. One operation is one retired guest
+ * instruction.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    static final int CYCLES = 1_000_000;
+
+    private byte[] arithmetic;
+    private byte[] countdown;
+    private CPU cpu;
+    private CPU traced;
+
+    @Setup(Level.Trial)
+    public void assemble() {
+        arithmetic = Programs.assemble(Programs.ARITHMETIC_LOOP);
+        countdown = Programs.assemble(Programs.COUNTDOWN);
+        cpu = new CPU(arithmetic);
+        traced = new CPU(arithmetic);
+        new Tracer(1 << 20).attach(traced);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public CPU cycleArithmetic() {
+        CPU cpu = this.cpu;
+        for (int i = 0; i < CYCLES; i++) {
+            cpu.cycle();
+        }
+
+        return cpu;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public CPU cycleArithmeticTraced() {
+        CPU cpu = this.traced;
+        for (int i = 0; i < CYCLES; i++) {
+            cpu.cycle();
+        }
+
+        return cpu;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Programs.COUNTDOWN_INSTRUCTIONS)
+    public CPU runCountdown() {
+        CPU cpu = new CPU(countdown);
+        cpu.run();
+        return cpu;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Programs.COUNTDOWN_INSTRUCTIONS)
+    public CPU runCountdownTiered() {
+        CPU cpu = new CPU(countdown);
+        new TieredExecutor(cpu).run();
+        return cpu;
+    }
+}
@@ -0,0 +1,43 @@
+package codes.devin.vcpu.benchmarks;
+
+import codes.devin.vcpu.CPU;
+import codes.devin.vcpu.Memory;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a text memory dump of 64 KiB of allocated memory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DumpBenchmark {
+
+    private CPU cpu;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        cpu = new CPU(Programs.assemble(Programs.ARITHMETIC_LOOP));
+        for (int address = 0; address < 0x10000; address += Memory.PAGE_SIZE) {
+            cpu.memory.write(address, (byte) 1);
+        }
+    }
+
+    @Benchmark
+    public String dumpMemory() {
+        return cpu.dumpMemory();
+    }
+}
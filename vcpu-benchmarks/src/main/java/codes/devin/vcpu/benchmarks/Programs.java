@@ -0,0 +1,116 @@
+package codes.devin.vcpu.benchmarks;
+
+import codes.devin.vcpu.asm.Assembler;
+import codes.devin.vcpu.asm.AssemblyException;
+
+/**
+ * Guest programs used by the benchmarks.
+ */
+final class Programs {
+
+    /**
+     * An endless arithmetic loop; four instructions per iteration.
+     */
+    static final String ARITHMETIC_LOOP = String.join("\n",
+            ":loop",
+            "add eax 1",
+            "sub ebx 3",
+            "mul ecx 5",
+            "jmp loop");
+
+    /**
+     * Counts ecx down to zero and halts; 2 * ecx + 2 instructions.
+     */
+    static final String COUNTDOWN = String.join("\n",
+            "mov ecx " + Programs.COUNTDOWN_ITERATIONS,
+            ":loop",
+            "sub ecx 1",
+            "jnz loop ecx",
+            "hlt");
+    static final int COUNTDOWN_ITERATIONS = 100_000;
+    static final int COUNTDOWN_INSTRUCTIONS = 2 * COUNTDOWN_ITERATIONS + 2;
+
+    /**
+     * An endless loop of pushes and pops; five instructions per iteration.
+     */
+    static final String PUSH_POP_LOOP = String.join("\n",
+            ":loop",
+            "push eax",
+            "push ebx",
+            "pop ecx",
+            "pop edx",
+            "jmp loop");
+
+    /**
+     * An endless state machine that takes every kind of conditional jump.
+     */
+    static final String BRANCHY_LOOP = String.join("\n",
+            "mov ecx 7",
+            ":top",
+            "sub ecx 1",
+            "jgz skip ecx",
+            "mov ecx 7",
+            ":skip",
+            "mov eax ecx",
+            "sub eax 3",
+            "jlz negative eax",
+            "jez zero eax",
+            "jmp top",
+            ":negative",
+            "add ebx 1",
+            "jmp top",
+            ":zero",
+            "add edx 1",
+            "jmp top");
+
+    private Programs() {
+    }
+
+    static byte[] assemble(String source) {
+        try {
+            return new Assembler(source).assemble();
+        } catch (AssemblyException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Generates an assembly source with the given number of lines, mixing
+     * labels, forward and backward jumps and every argument type.
+     */
+    static String generate(int lines) {
+        StringBuilder sb = new StringBuilder(lines * 16);
+        for (int i = 0; i < lines; i++) {
+            switch (i % 8) {
+                case 0:
+                    sb.append(":l").append(i);
+                    break;
+                case 1:
+                    sb.append("mov eax ").append(i);
+                    break;
+                case 2:
+                    sb.append("add eax, ebx");
+                    break;
+                case 3:
+                    sb.append("sub ecx [0x").append(Integer.toHexString(i & 0xFFF)).append(']');
+                    break;
+                case 4:
+                    sb.append("jnz l").append(i + 4 < lines ? i + 4 : i - 4).append(" ecx");
+                    break;
+                case 5:
+                    sb.append("push edx");
+                    break;
+                case 6:
+                    sb.append("pop edx");
+                    break;
+                default:
+                    sb.append("jmp l").append(i - 7);
+                    break;
+            }
+
+            sb.append('\n');
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,54 @@
+package codes.devin.vcpu.benchmarks;
+
+import codes.devin.vcpu.CPU;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PUSH/POP throughput with a given number of values already on the stack.
+ * One operation is one retired guest instruction.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StackBenchmark {
+
+    @Param({"0", "64", "1000"})
+    public int depth;
+
+    private CPU cpu;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        cpu = new CPU(Programs.assemble(Programs.PUSH_POP_LOOP));
+
+        // The loop is balanced, so the stack stays at this depth
+        cpu.sp = cpu.stackTop - depth * 4;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DispatchBenchmark.CYCLES)
+    public CPU pushPop() {
+        CPU cpu = this.cpu;
+        for (int i = 0; i < DispatchBenchmark.CYCLES; i++) {
+            cpu.cycle();
+        }
+
+        return cpu;
+    }
+}